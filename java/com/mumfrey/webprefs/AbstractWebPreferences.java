@@ -22,6 +22,17 @@ abstract class AbstractWebPreferences implements IWebPreferences
     
     protected final boolean isReadOnly;
 
+    /**
+     * Timing wheel which owns this collection's timers
+     */
+    private volatile WebPreferencesScheduler scheduler;
+
+    /**
+     * Time (from {@link System#nanoTime}) this collection was last accessed,
+     * used by the manager to evict idle collections
+     */
+    private volatile long lastAccessed = System.nanoTime();
+
     AbstractWebPreferences(UUID uuid, boolean isPrivate, boolean isReadOnly)
     {
         this(uuid.toString(), isPrivate, isReadOnly);
@@ -34,7 +45,96 @@ abstract class AbstractWebPreferences implements IWebPreferences
         this.isReadOnly = isReadOnly;
     }
 
-    void onTick()
+    void setScheduler(WebPreferencesScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Schedule (or reschedule) one of this collection's timers
+     *
+     * @param timer Timer to schedule
+     * @param delay Delay in ticks
+     */
+    protected void schedule(WebPreferencesScheduler.Timer timer, int delay)
+    {
+        WebPreferencesScheduler scheduler = this.scheduler;
+        if (scheduler != null)
+        {
+            scheduler.schedule(timer, delay);
+        }
+    }
+
+    /**
+     * Schedule one of this collection's timers unless it is already scheduled
+     */
+    protected void scheduleIfIdle(WebPreferencesScheduler.Timer timer, int delay)
+    {
+        WebPreferencesScheduler scheduler = this.scheduler;
+        if (scheduler != null)
+        {
+            scheduler.scheduleIfIdle(timer, delay);
+        }
+    }
+
+    /**
+     * Cancel one of this collection's timers
+     */
+    protected void cancel(WebPreferencesScheduler.Timer timer)
+    {
+        WebPreferencesScheduler scheduler = this.scheduler;
+        if (scheduler != null)
+        {
+            scheduler.cancel(timer);
+        }
+    }
+
+    /**
+     * Record an access to this collection
+     */
+    void touch()
+    {
+        this.lastAccessed = System.nanoTime();
+    }
+
+    long getLastAccessed()
+    {
+        return this.lastAccessed;
+    }
+
+    /**
+     * Get whether the manager may evict this collection, writable collections
+     * are never evicted
+     */
+    boolean isEvictable()
+    {
+        return this.isReadOnly;
+    }
+
+    /**
+     * Get whether this collection has received values from the server since
+     * the specified time
+     *
+     * @param time time from {@link System#nanoTime}
+     */
+    boolean isRefreshedSince(long time)
+    {
+        return false;
+    }
+
+    /**
+     * Re-fetch the values held by this collection, unlike {@link #poll} this
+     * does not consult the change feed first
+     */
+    void refresh()
+    {
+        this.poll();
+    }
+
+    /**
+     * Called when this collection is released by the manager
+     */
+    void onReleased()
     {
         // stub for subclasses
     }
@@ -125,6 +225,140 @@ abstract class AbstractWebPreferences implements IWebPreferences
         WebPreferences.validateKey(key);
     }
 
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #has(com.mumfrey.webprefs.PreferenceKey)
+     */
+    @Override
+    public boolean has(PreferenceKey key)
+    {
+        return this.has(key.getName());
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #get(com.mumfrey.webprefs.PreferenceKey)
+     */
+    @Override
+    public String get(PreferenceKey key)
+    {
+        return this.get(key.getName());
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #get(com.mumfrey.webprefs.PreferenceKey, java.lang.String)
+     */
+    @Override
+    public String get(PreferenceKey key, String defaultValue)
+    {
+        return this.get(key.getName(), defaultValue);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #set(com.mumfrey.webprefs.PreferenceKey, java.lang.String)
+     */
+    @Override
+    public void set(PreferenceKey key, String value)
+    {
+        this.set(key.getName(), value);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #getInt(java.lang.String, int)
+     */
+    @Override
+    public int getInt(String key, int defaultValue)
+    {
+        return this.getInt(PreferenceKey.of(key), defaultValue);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #getInt(com.mumfrey.webprefs.PreferenceKey, int)
+     */
+    @Override
+    public int getInt(PreferenceKey key, int defaultValue)
+    {
+        WebPreferencesParsedValue value = this.getParsedValue(key, WebPreferencesParsedValue.Type.INT);
+        return value != null && value.valid ? value.intValue : defaultValue;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #getFloat(java.lang.String, float)
+     */
+    @Override
+    public float getFloat(String key, float defaultValue)
+    {
+        return this.getFloat(PreferenceKey.of(key), defaultValue);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #getFloat(com.mumfrey.webprefs.PreferenceKey, float)
+     */
+    @Override
+    public float getFloat(PreferenceKey key, float defaultValue)
+    {
+        WebPreferencesParsedValue value = this.getParsedValue(key, WebPreferencesParsedValue.Type.FLOAT);
+        return value != null && value.valid ? value.floatValue : defaultValue;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #getBoolean(java.lang.String, boolean)
+     */
+    @Override
+    public boolean getBoolean(String key, boolean defaultValue)
+    {
+        return this.getBoolean(PreferenceKey.of(key), defaultValue);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #getBoolean(com.mumfrey.webprefs.PreferenceKey, boolean)
+     */
+    @Override
+    public boolean getBoolean(PreferenceKey key, boolean defaultValue)
+    {
+        WebPreferencesParsedValue value = this.getParsedValue(key, WebPreferencesParsedValue.Type.BOOLEAN);
+        return value != null && value.valid ? value.intValue != 0 : defaultValue;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #getColor(java.lang.String, int)
+     */
+    @Override
+    public int getColor(String key, int defaultValue)
+    {
+        return this.getColor(PreferenceKey.of(key), defaultValue);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #getColor(com.mumfrey.webprefs.PreferenceKey, int)
+     */
+    @Override
+    public int getColor(PreferenceKey key, int defaultValue)
+    {
+        WebPreferencesParsedValue value = this.getParsedValue(key, WebPreferencesParsedValue.Type.COLOR);
+        return value != null && value.valid ? value.intValue : defaultValue;
+    }
+
+    /**
+     * Get the value for the specified key parsed as the specified type, or
+     * null if there is no value
+     */
+    WebPreferencesParsedValue getParsedValue(PreferenceKey key, WebPreferencesParsedValue.Type type)
+    {
+        String value = this.get(key);
+        return value != null ? WebPreferencesParsedValue.parse(value, type) : null;
+    }
+
     /* (non-Javadoc)
      * @see com.mumfrey.webprefs.interfaces.IWebPreferences
      *      #remove(java.lang.String)
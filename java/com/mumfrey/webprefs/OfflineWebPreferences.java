@@ -41,9 +41,18 @@ class OfflineWebPreferences extends DummyOfflineWebPreferences
     final Map<String, String> prefs;
     
     /**
-     * Tick number for write throttling
+     * Timer for write throttling, schedules a save when the store first
+     * becomes dirty. Runs on the game thread since the store is modified
+     * there.
      */
-    private int tickNumber;
+    private final WebPreferencesScheduler.Timer saveTimer = new WebPreferencesScheduler.Timer(new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            OfflineWebPreferences.this.onSaveTimer();
+        }
+    }, true);
     
     /**
      * Flag indicating serialisation to disk is required
@@ -109,17 +118,21 @@ class OfflineWebPreferences extends DummyOfflineWebPreferences
         }
     }
     
-    @Override
-    void onTick()
+    private void onSaveTimer()
     {
-        if (this.tickNumber++ > OfflineWebPreferences.COMMIT_RATE && this.isDirty)
+        if (this.isDirty)
         {
             this.isDirty = false;
-            this.tickNumber = 0;
             this.saveValues();
         }
     }
 
+    private void markDirty()
+    {
+        this.isDirty = true;
+        this.scheduleIfIdle(this.saveTimer, OfflineWebPreferences.COMMIT_RATE);
+    }
+
     @Override
     public void request(String key)
     {
@@ -136,7 +149,7 @@ class OfflineWebPreferences extends DummyOfflineWebPreferences
     @Override
     public void commit(boolean force)
     {
-        this.isDirty = true;
+        this.markDirty();
     }
     
     /* (non-Javadoc)
@@ -187,6 +200,6 @@ class OfflineWebPreferences extends DummyOfflineWebPreferences
         WebPreferences.validateKV(key, value);
 
         this.prefs.put(key, value);
-        this.isDirty = true;
+        this.markDirty();
     }
 }
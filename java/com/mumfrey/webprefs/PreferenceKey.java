@@ -0,0 +1,49 @@
+package com.mumfrey.webprefs;
+
+import com.mumfrey.webprefs.exceptions.InvalidKeyException;
+
+/**
+ * Pre-validated handle for a preference key. Obtain a handle once, for
+ * example in a static field, and pass it to the {@link PreferenceKey}
+ * overloads of {@link com.mumfrey.webprefs.interfaces.IWebPreferences} to
+ * read values without validating the key again. Handles are interned, so
+ * there is exactly one handle for each key.
+ *
+ * @author Adam Mummery-Smith
+ */
+public final class PreferenceKey
+{
+    private final String name;
+
+    /**
+     * Id of this key in the key dictionary
+     */
+    final int id;
+
+    PreferenceKey(String name, int id)
+    {
+        this.name = name;
+        this.id = id;
+    }
+
+    /**
+     * Get the handle for the specified key
+     *
+     * @throws InvalidKeyException if the key is not valid
+     */
+    public static PreferenceKey of(String key)
+    {
+        return WebPreferencesKeyDictionary.getKey(key);
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.name;
+    }
+}
@@ -1,11 +1,15 @@
 package com.mumfrey.webprefs;
 
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
@@ -13,11 +17,162 @@ import com.mumfrey.webprefs.exceptions.InvalidKeyException;
 import com.mumfrey.webprefs.exceptions.InvalidValueException;
 import com.mumfrey.webprefs.exceptions.ReadOnlyPreferencesException;
 import com.mumfrey.webprefs.framework.RequestFailureReason;
+import com.mumfrey.webprefs.framework.RequestPriority;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesCapacityListener;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesClient;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesProvider;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesPushListener;
 
+/**
+ * Preference collection backed by a remote KV service. Timings are in ticks,
+ * which are game ticks or 50ms of real time depending on the manager's
+ * {@link com.mumfrey.webprefs.framework.SchedulingMode}.
+ */
 class WebPreferences extends AbstractWebPreferences
 {
+    /**
+     * Immutable state of a key in this collection. Every change of state
+     * replaces the state held in the key's {@link Slot} using compareAndSet,
+     * so the value and flags of a key always change together and neither
+     * consumers nor provider callbacks need to take a lock.
+     */
+    static final class KeyState
+    {
+        /**
+         * Requested by a consumer but not requested from the server yet
+         */
+        static final int REQUESTED = 1;
+
+        /**
+         * Requested from the server but not received yet
+         */
+        static final int PENDING = 2;
+
+        /**
+         * Set by a consumer but not sent to the server yet
+         */
+        static final int DIRTY = 4;
+
+        static final KeyState EMPTY = new KeyState(null, 0, 0, 0L);
+
+        final String value;
+
+        final int flags;
+
+        /**
+         * Number of consecutive responses which confirmed the server does not
+         * have the key, 0 if the key is not known to be absent
+         */
+        final int absentCount;
+
+        /**
+         * Time (from {@link System#nanoTime}) until which the key is assumed
+         * to be absent
+         */
+        final long absentExpires;
+
+        KeyState(String value, int flags, int absentCount, long absentExpires)
+        {
+            this.value = value;
+            this.flags = flags;
+            this.absentCount = absentCount;
+            this.absentExpires = absentExpires;
+        }
+
+        /**
+         * Get whether any of the specified flags are set
+         */
+        boolean is(int flags)
+        {
+            return (this.flags & flags) != 0;
+        }
+
+        boolean isKnownAbsent(long now)
+        {
+            return this.absentCount > 0 && now - this.absentExpires < 0;
+        }
+
+        KeyState withFlags(int flags)
+        {
+            return flags == this.flags ? this : new KeyState(this.value, flags, this.absentCount, this.absentExpires);
+        }
+
+        /**
+         * Get a state with the specified value, the key is no longer absent.
+         * An equal value does not replace the current one, so that the parsed
+         * value for the key remains valid.
+         */
+        KeyState withValue(String value, int flags)
+        {
+            return new KeyState(value != null && value.equals(this.value) ? this.value : value, flags, 0, 0L);
+        }
+
+        /**
+         * Get a state with no value which is absent for longer each time the
+         * server confirms the key is absent again
+         */
+        KeyState withAbsent(long now, int flags)
+        {
+            long ttl = Math.min(WebPreferences.ABSENT_TTL_MAX_NANOS, WebPreferences.ABSENT_TTL_NANOS << Math.min(this.absentCount, 16));
+            return new KeyState(null, flags, this.absentCount + 1, now + ttl);
+        }
+    }
+
+    /**
+     * Holds the current state of a key in this collection, slots are created
+     * the first time the collection uses a key and are never removed
+     */
+    static final class Slot extends AtomicReference<KeyState>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Most recently parsed value, used by the typed accessors. Only used
+         * whilst it matches the current value, so it is written without
+         * coordinating with changes of state.
+         */
+        volatile WebPreferencesParsedValue parsed;
+
+        Slot()
+        {
+            super(KeyState.EMPTY);
+        }
+
+        /**
+         * Replace the state if it is still the expected state
+         *
+         * @return false if the state was changed by another thread
+         */
+        boolean replace(KeyState state, KeyState newState)
+        {
+            if (state == newState)
+            {
+                return true;
+            }
+
+            if (!this.compareAndSet(state, newState))
+            {
+                return false;
+            }
+
+            if (newState.value != state.value)
+            {
+                this.parsed = null;
+            }
+            return true;
+        }
+
+        void setFlags(int set, int clear)
+        {
+            KeyState state;
+            do
+            {
+                state = this.get();
+            }
+            while (!this.replace(state, state.withFlags((state.flags | set) & ~clear)));
+        }
+    }
+
     /**
      * The update frequency to use when operating normally, this is the
      * frequency that new requests will be submitted to the remote request queue
@@ -25,15 +180,37 @@ class WebPreferences extends AbstractWebPreferences
     private static final int UPDATE_FREQUENCY_TICKS = 20; // 1 second
 
     /**
-     * Number of ticks to wait before a request is assumed to have timed out
+     * Number of ticks to wait before a request is assumed to have timed out. In
+     * wall clock mode the provider enforces its own (shorter) deadline, so this
+     * is only a backstop.
      */
     private static final int REQUEST_TIMEOUT_TICKS = 20 * 60; // 1 minute
 
     /**
-     * Number of ticks to wait on any communication error (request failed at the
-     * server, request failed to be submitted, request timed out, etc.)
+     * Number of ticks to wait after the first communication error (request
+     * failed at the server, request timed out, etc.), doubles with each
+     * consecutive error and is scaled by the severity of the error
      */
-    private static final int UPDATE_ERROR_SUSPEND_TICKS = 20 * 60; // 1 minute
+    private static final int UPDATE_ERROR_SUSPEND_TICKS = 20 * 5; // 5 seconds
+
+    /**
+     * Maximum number of ticks to wait after consecutive communication errors
+     */
+    private static final int UPDATE_ERROR_SUSPEND_MAX_TICKS = 20 * 60 * 10; // 10 minutes
+
+    /**
+     * Time for which a key the server does not have is assumed to be absent,
+     * doubles each time the key is confirmed absent again
+     */
+    private static final long ABSENT_TTL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Maximum time for which a key the server does not have is assumed to be
+     * absent
+     */
+    private static final long ABSENT_TTL_MAX_NANOS = TimeUnit.MINUTES.toNanos(30);
+
+    private static final Slot[] NO_SLOTS = new Slot[0];
 
     /**
      * Pattern for validating keys
@@ -46,17 +223,47 @@ class WebPreferences extends AbstractWebPreferences
      *
      * @author Adam Mummery-Smith
      */
-    class Client implements IWebPreferencesClient
+    class Client implements IWebPreferencesClient, IWebPreferencesCapacityListener, IWebPreferencesPushListener
     {
         @Override
-        public void onGetRequestSuccess(String uuid, Map<String, String> values)
+        public void onCapacityAvailable()
+        {
+            WebPreferences.this.awaitingCapacity = false;
+            if (WebPreferences.this.dirty)
+            {
+                WebPreferences.this.scheduleUpdate();
+            }
+        }
+
+        @Override
+        public void onGetRequestSuccess(String uuid, Set<String> keys, Map<String, String> values, String version)
         {
             if (!WebPreferences.this.uuid.equals(uuid))
             {
                 throw new RuntimeException("Received unsolicited response");
             }
             
-            WebPreferences.this.onGetRequestSuccess(values);
+            WebPreferences.this.onGetRequestSuccess(keys, values, version);
+        }
+
+        @Override
+        public void onGetRequestNotModified(String uuid, Set<String> keys, String version)
+        {
+            if (!WebPreferences.this.uuid.equals(uuid))
+            {
+                throw new RuntimeException("Received unsolicited response");
+            }
+            
+            WebPreferences.this.onGetRequestNotModified(keys);
+        }
+
+        @Override
+        public void onValuesPushed(String uuid, Map<String, String> values)
+        {
+            if (WebPreferences.this.uuid.equals(uuid))
+            {
+                WebPreferences.this.onValuesPushed(values);
+            }
         }
 
         @Override
@@ -101,42 +308,116 @@ class WebPreferences extends AbstractWebPreferences
     /**
      * Preferences delegate
      */
-    private final IWebPreferencesClient client;
+    private final Client client;
     
     /**
-     * Current key/value pairs
+     * State of each key used by this collection, indexed by key id from
+     * {@link WebPreferencesKeyDictionary}. Slots are updated without locking
+     * so that consumers never wait for provider callbacks. The array is copied
+     * and replaced whilst holding {@link #slotLock} when a slot is added.
      */
-    protected final Map<String, String> prefs = new ConcurrentHashMap<String, String>();
+    private volatile Slot[] slots = WebPreferences.NO_SLOTS;
     
     /**
-     * Keys which have been requested by a consumer but not requested from the
-     * server yet
+     * Lock for adding slots, only taken the first time this collection uses
+     * each key
      */
-    protected final Set<String> requestedPrefs = new HashSet<String>();
+    private final Object slotLock = new Object();
     
     /**
-     * Keys which have been requested from the server but not received yet
+     * True when any kind of
      */
-    protected final Set<String> pendingPrefs = new HashSet<String>();
+    protected volatile boolean dirty = false;
     
     /**
-     * Keys which have been set by a consumer but not sent to the server yet
+     * True when a consumer has read from this collection since the last
+     * update, used to prioritise requests for collections which are in use
      */
-    protected final Set<String> dirtyPrefs = new HashSet<String>();
+    private volatile boolean accessed = false;
     
     /**
-     * Concurrency lock
+     * Priority for requests submitted by this collection, recalculated on each
+     * update
      */
-    protected final Object lock = new Object();
+    private volatile RequestPriority priority;
     
     /**
-     * True when any kind of
+     * Timer for the next update, also used to hold updates whilst suspended
+     * following an error. Not scheduled whilst the collection is idle.
      */
-    protected volatile boolean dirty = false;
-    
-    private volatile int updateCheckTimer = 1;
+    private final WebPreferencesScheduler.Timer updateTimer = new WebPreferencesScheduler.Timer(new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            WebPreferences.this.update();
+        }
+    });
     
-    protected int requestTimeoutTimer = 0;
+    /**
+     * Timer for the outstanding GET request, if any
+     */
+    private final WebPreferencesScheduler.Timer requestTimeoutTimer = new WebPreferencesScheduler.Timer(new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            WebPreferences.this.handleTimeout();
+        }
+    });
+
+    /**
+     * Time (from {@link System#nanoTime}) values were last received from the
+     * server, 0 if no values have been received
+     */
+    private volatile long lastRefreshed = 0L;
+
+    /**
+     * Version of the collection reported by the server when all of the keys
+     * we hold were last received, sent with requests which only refresh keys
+     * we already hold so that the server can skip unchanged collections
+     */
+    private volatile String version;
+
+    /**
+     * Change feed consulted by {@link #poll}, null if this collection does
+     * not use the change feed
+     */
+    private volatile WebPreferencesChangeFeed changeFeed;
+
+    /**
+     * Cursor returned by the last changes request which included this
+     * collection, null if we have not been included in a changes request
+     */
+    private volatile String changeCursor;
+
+    /**
+     * Subscriber which pushes changed values to us, null if we are not
+     * subscribed
+     */
+    private volatile WebPreferencesSubscriber subscriber;
+
+    /**
+     * Persistent cache to write received values to, null if this collection
+     * is not cached
+     */
+    private volatile WebPreferencesCache cache;
+
+    /**
+     * True when updates have been halted permanently
+     */
+    private volatile boolean halted = false;
+
+    /**
+     * Number of consecutive failed requests, reset when a request succeeds
+     */
+    private volatile int failureCount = 0;
+
+    /**
+     * True when the provider rejected a request because its queue was full,
+     * updates are held until the provider notifies us that it has capacity
+     */
+    private volatile boolean awaitingCapacity = false;
     
     WebPreferences(IWebPreferencesProvider provider, UUID uuid, boolean isPrivate, boolean isReadOnly)
     {
@@ -148,73 +429,445 @@ class WebPreferences extends AbstractWebPreferences
         super(uuid, isPrivate, isReadOnly);
         this.provider = provider;
         this.client = new Client();
+        this.priority = this.getRequestPriority();
     }
     
+    /**
+     * Serve values from the supplied cache until fresh values are received
+     * from the server, and write values received from the server back to the
+     * cache. Cached values are revalidated on the next update.
+     */
+    void setCache(WebPreferencesCache cache)
+    {
+        this.cache = cache;
+
+        WebPreferencesCache.CacheEntry cached = cache != null ? cache.get(this.uuid) : null;
+        if (cached == null || cached.values.isEmpty())
+        {
+            return;
+        }
+
+        if (this.getHeldKeys().isEmpty())
+        {
+            this.version = cached.version;
+        }
+
+        for (Entry<String, String> entry : cached.values.entrySet())
+        {
+            if (!WebPreferences.isValidKey(entry.getKey()) || entry.getValue() == null || entry.getValue().isEmpty())
+            {
+                continue;
+            }
+
+            // Cached values are revalidated, but never replace a value we already hold
+            Slot slot = this.getOrCreateSlot(WebPreferencesKeyDictionary.getKey(entry.getKey()).id);
+            KeyState state;
+            do
+            {
+                state = slot.get();
+                if (state.value != null)
+                {
+                    break;
+                }
+            }
+            while (!slot.replace(state, state.withValue(entry.getValue(),
+                    state.is(KeyState.PENDING) ? state.flags : state.flags | KeyState.REQUESTED)));
+        }
+
+        this.markDirty();
+    }
+
+    /**
+     * Consult the supplied change feed when polling, so that the values are
+     * only re-fetched if the server reports that they changed
+     */
+    void setChangeFeed(WebPreferencesChangeFeed changeFeed)
+    {
+        this.changeFeed = changeFeed;
+        if (changeFeed != null && this.changeCursor == null)
+        {
+            this.changeCursor = changeFeed.getLatestCursor();
+        }
+    }
+
+    /**
+     * Receive values pushed by the supplied subscriber, replacing any previous
+     * subscription
+     */
+    void setSubscriber(WebPreferencesSubscriber subscriber)
+    {
+        WebPreferencesSubscriber previous = this.subscriber;
+        if (previous != null && previous != subscriber)
+        {
+            previous.unsubscribe(this.uuid);
+        }
+
+        this.subscriber = subscriber;
+        if (subscriber != null && !this.halted)
+        {
+            subscriber.subscribe(this.uuid, this.client);
+        }
+    }
+
+    String getChangeCursor()
+    {
+        return this.changeCursor;
+    }
+
+    /**
+     * Callback from the change feed
+     *
+     * @param cursor new cursor for this collection
+     * @param changed true if the server reported that we changed since our
+     *      previous cursor, in which case the caller will refresh us
+     */
+    void onChangeCursor(String cursor, boolean changed)
+    {
+        this.changeCursor = cursor;
+        if (!changed)
+        {
+            this.lastRefreshed = System.nanoTime();
+        }
+    }
+
+    private void updateCache()
+    {
+        WebPreferencesCache cache = this.cache;
+        if (cache != null)
+        {
+            cache.put(this.uuid, this.getValues(), this.version);
+        }
+    }
+
+    private Slot getSlot(int id)
+    {
+        Slot[] slots = this.slots;
+        return id < slots.length ? slots[id] : null;
+    }
+
+    private Slot getOrCreateSlot(int id)
+    {
+        Slot slot = this.getSlot(id);
+        if (slot != null)
+        {
+            return slot;
+        }
+
+        synchronized (this.slotLock)
+        {
+            Slot[] slots = this.slots;
+            if (id < slots.length && slots[id] != null)
+            {
+                return slots[id];
+            }
+
+            // Always copy so that slots are only published by replacing the array, size for every key seen so far
+            // since other collections are likely to use the same keys
+            Slot[] newSlots = new Slot[Math.max(slots.length, Math.max(id + 1, WebPreferencesKeyDictionary.size()))];
+            System.arraycopy(slots, 0, newSlots, 0, slots.length);
+            slot = newSlots[id] = new Slot();
+            this.slots = newSlots;
+            return slot;
+        }
+    }
+
+    /**
+     * Get the value stored for the specified key id
+     */
+    private String getValue(int id)
+    {
+        Slot slot = this.getSlot(id);
+        return slot != null ? slot.get().value : null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.AbstractWebPreferences#getParsedValue
+     */
     @Override
-    void onTick()
+    WebPreferencesParsedValue getParsedValue(PreferenceKey key, WebPreferencesParsedValue.Type type)
     {
-        if (this.updateCheckTimer > 0 && --this.updateCheckTimer < 1)
+        String value = this.get(key);
+        if (value == null)
         {
-            this.update();
+            return null;
         }
-        
-        if (this.requestTimeoutTimer > 0 && --this.requestTimeoutTimer < 1)
+
+        Slot slot = this.getSlot(key.id);
+        WebPreferencesParsedValue parsed = slot.parsed;
+        if (parsed != null && parsed.isFor(value, type))
         {
-            this.handleTimeout();
+            return parsed;
         }
+
+        parsed = WebPreferencesParsedValue.parse(value, type);
+        slot.parsed = parsed;
+        return parsed;
     }
-    
+
+    /**
+     * Get a snapshot of the current values by key
+     */
+    Map<String, String> getValues()
+    {
+        Map<String, String> values = new HashMap<String, String>();
+        Slot[] slots = this.slots;
+        for (int id = 0; id < slots.length; id++)
+        {
+            String value = slots[id] != null ? slots[id].get().value : null;
+            if (value != null)
+            {
+                values.put(WebPreferencesKeyDictionary.getName(id), value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get the ids of the keys which currently have values
+     */
+    private BitSet getHeldKeys()
+    {
+        BitSet held = new BitSet();
+        Slot[] slots = this.slots;
+        for (int id = 0; id < slots.length; id++)
+        {
+            if (slots[id] != null && slots[id].get().value != null)
+            {
+                held.set(id);
+            }
+        }
+        return held;
+    }
+
+    /**
+     * Get whether any key has any of the specified flags
+     */
+    private boolean hasFlags(int flags)
+    {
+        for (Slot slot : this.slots)
+        {
+            if (slot != null && slot.get().is(flags))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set and clear flags on the specified keys
+     */
+    private void setFlags(BitSet ids, int set, int clear)
+    {
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1))
+        {
+            Slot slot = this.getSlot(id);
+            if (slot != null)
+            {
+                slot.setFlags(set, clear);
+            }
+        }
+    }
+
+    /**
+     * Atomically replace a flag with another on every key which has it
+     *
+     * @return the ids of the keys which had the flag
+     */
+    private BitSet transferFlag(int from, int to)
+    {
+        BitSet ids = new BitSet();
+        Slot[] slots = this.slots;
+        for (int id = 0; id < slots.length; id++)
+        {
+            Slot slot = slots[id];
+            KeyState state;
+            do
+            {
+                state = slot != null ? slot.get() : KeyState.EMPTY;
+                if (!state.is(from))
+                {
+                    break;
+                }
+            }
+            while (!slot.replace(state, state.withFlags((state.flags & ~from) | to)));
+
+            if (state.is(from))
+            {
+                ids.set(id);
+            }
+        }
+        return ids;
+    }
+
+    private static Set<String> toKeys(BitSet ids)
+    {
+        Set<String> keys = new HashSet<String>();
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1))
+        {
+            keys.add(WebPreferencesKeyDictionary.getName(id));
+        }
+        return keys;
+    }
+
+    /**
+     * Get the ids of the specified keys, keys which have not been interned
+     * are ignored since no collection can hold state for them
+     */
+    private static BitSet toIds(Set<String> keys)
+    {
+        BitSet ids = new BitSet();
+        for (String key : keys)
+        {
+            PreferenceKey prefKey = WebPreferencesKeyDictionary.findKey(key);
+            if (prefKey != null)
+            {
+                ids.set(prefKey.id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Collections with changes or requests in flight are not evicted
+     */
+    @Override
+    boolean isEvictable()
+    {
+        return super.isEvictable() && !this.hasFlags(KeyState.DIRTY | KeyState.PENDING);
+    }
+
+    @Override
+    boolean isRefreshedSince(long time)
+    {
+        long lastRefreshed = this.lastRefreshed;
+        return lastRefreshed != 0L && lastRefreshed - time >= 0;
+    }
+
+    @Override
+    void onReleased()
+    {
+        // Released collections behave as if halted, values already received remain readable
+        this.halt();
+        this.setSubscriber(null);
+    }
+
+    private void halt()
+    {
+        this.halted = true;
+        this.cancel(this.updateTimer);
+        this.cancel(this.requestTimeoutTimer);
+    }
+
     /**
      * Handle server requests on a periodic basis
      */
     private void update()
     {
-        this.updateCheckTimer = WebPreferences.UPDATE_FREQUENCY_TICKS;
+        this.priority = this.getRequestPriority();
+        this.accessed = false;
 
-        if (!this.dirty || !this.provider.isActive())
+        if (this.halted || !this.dirty || this.awaitingCapacity)
         {
+            // Nothing to do, go idle until something marks us dirty again
             return;
         }
+
+        this.schedule(this.updateTimer, WebPreferences.UPDATE_FREQUENCY_TICKS);
+        if (!this.provider.isActive())
+        {
+            return;
+        }
+        
+        this.dirty = false;
         
-        synchronized (this.lock)
+        // Keys are marked pending before the request is submitted, since the response can arrive before requestGet returns
+        BitSet requested = this.transferFlag(KeyState.REQUESTED, KeyState.PENDING);
+        if (!requested.isEmpty())
         {
-            this.dirty = false;
-            
-            if (this.requestedPrefs.size() > 0)
+            LiteLoaderLogger.debug("Preferences for " + this.uuid + " is submitting a request for "
+                    + requested.cardinality() + " requested preferences");
+            // Only send our version when refreshing keys we already hold, since the version says nothing about other keys
+            BitSet unheld = (BitSet)requested.clone();
+            unheld.andNot(this.getHeldKeys());
+            String version = unheld.isEmpty() ? this.version : null;
+            this.schedule(this.requestTimeoutTimer, WebPreferences.REQUEST_TIMEOUT_TICKS);
+            if (!this.provider.requestGet(this.client, this.uuid, WebPreferences.toKeys(requested), this.isPrivate, this.priority, version))
             {
-                LiteLoaderLogger.debug("Preferences for " + this.uuid + " is submitting a request for "
-                        + this.requestedPrefs.size() + " requested preferences");
-                if (this.provider.requestGet(this.client, this.uuid, new HashSet<String>(this.requestedPrefs), this.isPrivate))
-                {
-                    this.requestTimeoutTimer = WebPreferences.REQUEST_TIMEOUT_TICKS;
-                    this.pendingPrefs.addAll(this.requestedPrefs);
-                    this.requestedPrefs.clear();
-                }
-                else
-                {
-                    this.dirty = true;
-                }
+                this.cancel(this.requestTimeoutTimer);
+                this.setFlags(requested, KeyState.REQUESTED, KeyState.PENDING);
+                this.dirty = true;
+                this.awaitCapacity();
             }
-
         }
         
         this.commit(false);
     }
 
     /**
-     * Called when a pending request is deemed to have timed out
+     * Hold updates until the provider has capacity for new requests, unless
+     * the request was rejected because the provider is unavailable in which
+     * case we simply retry on the next update
      */
-    private void handleTimeout()
+    private void awaitCapacity()
     {
-        this.updateCheckTimer = WebPreferences.UPDATE_ERROR_SUSPEND_TICKS;
+        if (this.provider.isActive())
+        {
+            this.awaitingCapacity = true;
+            this.provider.addCapacityListener(this.client);
+        }
+        else
+        {
+            this.scheduleUpdate();
+        }
+    }
+
+    /**
+     * Mark this collection dirty and schedule an update
+     */
+    private void markDirty()
+    {
+        this.dirty = true;
+        this.scheduleUpdate();
+    }
 
-        synchronized (this.lock)
+    /**
+     * Schedule an update on the next tick if we are currently idle, does not
+     * shorten a pending update or suspension
+     */
+    private void scheduleUpdate()
+    {
+        if (!this.halted)
         {
-            this.requestedPrefs.addAll(this.pendingPrefs);
-            this.pendingPrefs.clear();
-            this.dirty = true;
+            this.scheduleIfIdle(this.updateTimer, 1);
         }
     }
+
+    /**
+     * Get the priority for requests from this collection, the local player's
+     * collections always take precedence, followed by collections which are
+     * actively being read
+     */
+    private RequestPriority getRequestPriority()
+    {
+        if (!this.isReadOnly)
+        {
+            return RequestPriority.LOCAL;
+        }
+
+        return this.accessed ? RequestPriority.VISIBLE : RequestPriority.BACKGROUND;
+    }
+
+    /**
+     * Called when a pending request is deemed to have timed out
+     */
+    private void handleTimeout()
+    {
+        this.suspendUpdates(1);
+
+        this.transferFlag(KeyState.PENDING, KeyState.REQUESTED);
+        this.markDirty();
+    }
     
     /* (non-Javadoc)
      * @see com.mumfrey.webprefs.interfaces.IWebPreferences
@@ -223,11 +876,9 @@ class WebPreferences extends AbstractWebPreferences
     @Override
     public void request(String key)
     {
-        WebPreferences.validateKey(key);
-
-        synchronized (this.lock)
+        if (this.addRequestedKey(WebPreferencesKeyDictionary.getKey(key).id, false))
         {
-            this.dirty |= this.addRequestedKey(key);
+            this.markDirty();
         }
     }
     
@@ -241,17 +892,16 @@ class WebPreferences extends AbstractWebPreferences
         if (keys.length < 1) return;
         if (keys.length == 1) this.request(keys[0]);
         
-        synchronized (this.lock)
+        boolean dirty = false;
+        
+        for (String key : keys)
         {
-            boolean dirty = false;
-            
-            for (String key : keys)
-            {
-                WebPreferences.validateKey(key);
-                dirty |= this.addRequestedKey(key);
-            }
-            
-            this.dirty |= dirty;
+            dirty |= this.addRequestedKey(WebPreferencesKeyDictionary.getKey(key).id, false);
+        }
+        
+        if (dirty)
+        {
+            this.markDirty();
         }
     }
     
@@ -264,17 +914,16 @@ class WebPreferences extends AbstractWebPreferences
     {
         if (keys == null || keys.size() < 1) return;
         
-        synchronized (this.lock)
+        boolean dirty = false;
+        
+        for (String key : keys)
         {
-            boolean dirty = false;
-            
-            for (String key : keys)
-            {
-                WebPreferences.validateKey(key);
-                dirty |= this.addRequestedKey(key);
-            }
-            
-            this.dirty |= dirty;
+            dirty |= this.addRequestedKey(WebPreferencesKeyDictionary.getKey(key).id, false);
+        }
+        
+        if (dirty)
+        {
+            this.markDirty();
         }
     }
     
@@ -284,13 +933,23 @@ class WebPreferences extends AbstractWebPreferences
     @Override
     public void poll()
     {
-        synchronized (this.lock)
+        WebPreferencesChangeFeed changeFeed = this.changeFeed;
+        if (changeFeed == null || !changeFeed.poll(this))
         {
-            this.requestedPrefs.addAll(this.prefs.keySet());
-            this.requestedPrefs.removeAll(this.pendingPrefs);
-            this.dirty = true;
+            this.refresh();
         }
     }
+
+    @Override
+    void refresh()
+    {
+        BitSet held = this.getHeldKeys();
+        for (int id = held.nextSetBit(0); id >= 0; id = held.nextSetBit(id + 1))
+        {
+            this.addRequestedKey(id, false);
+        }
+        this.markDirty();
+    }
     
     /* (non-Javadoc)
      * @see com.mumfrey.webprefs.interfaces.IWebPreferences#commit(boolean)
@@ -298,36 +957,45 @@ class WebPreferences extends AbstractWebPreferences
     @Override
     public void commit(boolean force)
     {
-        synchronized (this.lock)
+        // Permanent error condition
+        if (this.halted)
+        {
+            return;
+        }
+        
+        // Keys are marked clean as their values are taken, so a value set whilst the request is in flight is sent again
+        BitSet committed = new BitSet();
+        Map<String, String> outgoingPrefs = new HashMap<String, String>();
+        Slot[] slots = this.slots;
+        for (int id = 0; id < slots.length; id++)
         {
-            // Permanent error condition
-            if (this.updateCheckTimer < 0)
+            Slot slot = slots[id];
+            KeyState state;
+            do
             {
-                return;
+                state = slot != null ? slot.get() : KeyState.EMPTY;
+                if (state.value == null || !(force || state.is(KeyState.DIRTY)))
+                {
+                    break;
+                }
             }
-            
-            if (force)
+            while (!slot.replace(state, state.withFlags(state.flags & ~KeyState.DIRTY)));
+
+            if (state.value != null && (force || state.is(KeyState.DIRTY)))
             {
-                this.dirtyPrefs.addAll(this.prefs.keySet());
+                committed.set(id);
+                outgoingPrefs.put(WebPreferencesKeyDictionary.getName(id), state.value);
             }
-            
-            if (this.dirtyPrefs.size() > 0)
+        }
+        
+        if (!outgoingPrefs.isEmpty())
+        {
+            LiteLoaderLogger.debug("Preferences for " + this.uuid + " is submitting a SET for " + outgoingPrefs.size() + " dirty preferences");
+            if (!this.provider.requestSet(this.client, this.uuid, outgoingPrefs, this.isPrivate, this.priority))
             {
-                Map<String, String> outgoingPrefs = new HashMap<String, String>();
-                for (String key : this.dirtyPrefs)
-                {
-                    outgoingPrefs.put(key, this.prefs.get(key));
-                }
-                
-                LiteLoaderLogger.debug("Preferences for " + this.uuid + " is submitting a SET for " + outgoingPrefs.size() + " dirty preferences");
-                if (this.provider.requestSet(this.client, this.uuid, outgoingPrefs, this.isPrivate))
-                {
-                    this.dirtyPrefs.clear();
-                }
-                else
-                {
-                    this.dirty = true;
-                }
+                this.setFlags(committed, KeyState.DIRTY, 0);
+                this.dirty = true;
+                this.awaitCapacity();
             }
         }
     }
@@ -339,8 +1007,16 @@ class WebPreferences extends AbstractWebPreferences
     @Override
     public boolean has(String key)
     {
-        WebPreferences.validateKey(key);
+        return this.get(WebPreferencesKeyDictionary.getKey(key)) != null;
+    }
 
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #has(com.mumfrey.webprefs.PreferenceKey)
+     */
+    @Override
+    public boolean has(PreferenceKey key)
+    {
         return this.get(key) != null;
     }
     
@@ -351,17 +1027,25 @@ class WebPreferences extends AbstractWebPreferences
     @Override
     public String get(String key)
     {
-        WebPreferences.validateKey(key);
+        return this.get(WebPreferencesKeyDictionary.getKey(key));
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #get(com.mumfrey.webprefs.PreferenceKey)
+     */
+    @Override
+    public String get(PreferenceKey key)
+    {
+        this.accessed = true;
+        this.touch();
 
-        // .get() can be outside of the synchronisation lock because we are using ConcurrentHashSet
-        String value = this.prefs.get(key);
+        // Values are read without locking, see slots
+        String value = this.getValue(key.id);
         
-        if (value == null)
+        if (value == null && this.addRequestedKey(key.id, true))
         {
-            synchronized (this.lock)
-            {
-                this.dirty |= this.addRequestedKey(key);
-            }
+            this.markDirty();
         }
         
         return value;
@@ -374,8 +1058,16 @@ class WebPreferences extends AbstractWebPreferences
     @Override
     public String get(String key, String defaultValue)
     {
-        WebPreferences.validateKey(key);
+        return this.get(WebPreferencesKeyDictionary.getKey(key), defaultValue);
+    }
 
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #get(com.mumfrey.webprefs.PreferenceKey, java.lang.String)
+     */
+    @Override
+    public String get(PreferenceKey key, String defaultValue)
+    {
         String value = this.get(key);
         return value != null ? value : defaultValue;
     }
@@ -386,60 +1078,175 @@ class WebPreferences extends AbstractWebPreferences
      */
     @Override
     public void set(String key, String value)
+    {
+        this.set(WebPreferencesKeyDictionary.getKey(key), value);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mumfrey.webprefs.interfaces.IWebPreferences
+     *      #set(com.mumfrey.webprefs.PreferenceKey, java.lang.String)
+     */
+    @Override
+    public void set(PreferenceKey key, String value)
     {
         if (this.isReadOnly())
         {
             throw new ReadOnlyPreferencesException("Preference collection for " + this.uuid + " is read-only");
         }
         
-        WebPreferences.validateKV(key, value);
+        WebPreferences.validateValue(key.getName(), value);
 
-        synchronized (this.lock)
+        Slot slot = this.getOrCreateSlot(key.id);
+        KeyState state;
+        do
         {
-            String oldValue = this.prefs.get(key);
-            if (value.equals(oldValue)) return;
-            
-            this.prefs.put(key, value);
-            this.dirtyPrefs.add(key);
-            this.requestedPrefs.remove(key);
-            this.dirty = true;
+            state = slot.get();
+            if (value.equals(state.value)) return;
         }
+        while (!slot.replace(state, state.withValue(value, (state.flags | KeyState.DIRTY) & ~KeyState.REQUESTED)));
+        
+        this.markDirty();
     }
     
     /**
      * Add a key to the current request set, the key will be requested from the
      * server on the next {@link #update()}
      *
-     * @param key
-     * @return
+     * @param id key id
+     * @param skipAbsent true to skip the key if the server recently confirmed
+     *      that it does not have the key
+     * @return true if the key was added
      */
-    private boolean addRequestedKey(String key)
+    private boolean addRequestedKey(int id, boolean skipAbsent)
     {
-        if (key != null && !this.pendingPrefs.contains(key))
+        Slot slot = this.getOrCreateSlot(id);
+        KeyState state;
+        do
         {
-            this.requestedPrefs.add(key);
-            return true;
+            state = slot.get();
+            if (state.is(KeyState.REQUESTED | KeyState.PENDING) || (skipAbsent && state.isKnownAbsent(System.nanoTime())))
+            {
+                return false;
+            }
         }
+        while (!slot.replace(state, state.withFlags(state.flags | KeyState.REQUESTED)));
         
-        return false;
+        return true;
     }
 
     /**
      * Callback from the preferences provider
      */
-    void onGetRequestSuccess(Map<String, String> values)
+    void onGetRequestSuccess(Set<String> keys, Map<String, String> values, String version)
     {
-        this.requestTimeoutTimer = 0;
+        this.cancel(this.requestTimeoutTimer);
+        this.failureCount = 0;
+        long now = this.lastRefreshed = System.nanoTime();
         
-        synchronized (this.lock)
+        BitSet requested = WebPreferences.toIds(keys);
+
+        // The version only describes the keys we hold if all of them were part of this response
+        BitSet unrequested = this.getHeldKeys();
+        unrequested.andNot(requested);
+        if (unrequested.isEmpty())
         {
-            this.prefs.putAll(values);
-            
-            Set<String> keys = values.keySet();
-            this.dirtyPrefs.removeAll(keys);
-            this.pendingPrefs.removeAll(keys);
-            this.requestedPrefs.removeAll(keys);
+            this.version = version;
+        }
+
+        // Only values for keys we requested are stored, so the server cannot grow the key dictionary
+        for (int id = requested.nextSetBit(0); id >= 0; id = requested.nextSetBit(id + 1))
+        {
+            Slot slot = this.getSlot(id);
+            if (slot == null)
+            {
+                continue;
+            }
+
+            String value = values.get(WebPreferencesKeyDictionary.getName(id));
+            KeyState state, newState;
+            do
+            {
+                state = slot.get();
+                int flags = state.flags & ~KeyState.PENDING;
+                if (state.is(KeyState.DIRTY))
+                {
+                    // Keep a local change which has not been sent yet, it supersedes whatever the server holds
+                    newState = state.withFlags(flags);
+                }
+                else if (value != null && !value.isEmpty())
+                {
+                    newState = state.withValue(value, flags & ~KeyState.REQUESTED);
+                }
+                else
+                {
+                    // Requested keys which the server did not return, or returned empty since that is how remove() deletes a
+                    // key, are absent. Discard any stale value unless we have changed it
+                    newState = state.withAbsent(now, flags);
+                }
+            }
+            while (!slot.replace(state, newState));
         }
+
+        this.updateCache();
+    }
+
+    /**
+     * Callback from the subscriber, values for keys we do not hold are
+     * ignored and keys we have changed locally keep their local value
+     */
+    void onValuesPushed(Map<String, String> values)
+    {
+        boolean changed = false;
+
+        for (Entry<String, String> entry : values.entrySet())
+        {
+            PreferenceKey prefKey = WebPreferencesKeyDictionary.findKey(entry.getKey());
+            Slot slot = prefKey != null ? this.getSlot(prefKey.id) : null;
+            if (slot == null || entry.getValue() == null)
+            {
+                continue;
+            }
+
+            // An empty value means the key was removed
+            long now = System.nanoTime();
+            KeyState state, newState;
+            boolean replaced;
+            do
+            {
+                state = newState = slot.get();
+                replaced = false;
+                if (state.is(KeyState.DIRTY) || (state.value == null && state.absentCount == 0))
+                {
+                    break;
+                }
+
+                newState = entry.getValue().isEmpty() ? state.withAbsent(now, state.flags) : state.withValue(entry.getValue(), state.flags);
+                replaced = newState.value == null ? state.value != null : !newState.value.equals(state.value);
+            }
+            while (!slot.replace(state, newState));
+
+            changed |= replaced;
+        }
+
+        if (changed)
+        {
+            this.updateCache();
+        }
+    }
+
+    /**
+     * Callback from the preferences provider, the server confirmed that the
+     * values we hold are current
+     */
+    void onGetRequestNotModified(Set<String> keys)
+    {
+        this.cancel(this.requestTimeoutTimer);
+        this.failureCount = 0;
+        this.lastRefreshed = System.nanoTime();
+
+        BitSet requested = WebPreferences.toIds(keys);
+
+        this.setFlags(requested, 0, KeyState.PENDING);
     }
 
     /**
@@ -447,14 +1254,20 @@ class WebPreferences extends AbstractWebPreferences
      */
     void onSetRequestSuccess(Set<String> keys)
     {
-        this.requestTimeoutTimer = 0;
+        this.cancel(this.requestTimeoutTimer);
+        this.failureCount = 0;
         
-        synchronized (this.lock)
+        BitSet committed = WebPreferences.toIds(keys);
+
+        // Committed keys were marked clean when the request was submitted, keys set again since then stay dirty
+        this.setFlags(committed, 0, KeyState.REQUESTED);
+        this.dirty = this.hasFlags(KeyState.DIRTY | KeyState.REQUESTED);
+        if (this.dirty)
         {
-            this.dirtyPrefs.removeAll(keys);
-            this.requestedPrefs.removeAll(keys);
-            this.dirty = (this.dirtyPrefs.size() > 0 || this.requestedPrefs.size() > 0);
+            this.scheduleUpdate();
         }
+
+        this.updateCache();
     }
 
     /**
@@ -463,15 +1276,13 @@ class WebPreferences extends AbstractWebPreferences
      */
     void onGetRequestFailed(Set<String> keys, RequestFailureReason reason)
     {
-        this.requestTimeoutTimer = 0;
+        this.cancel(this.requestTimeoutTimer);
         this.handleFailedRequest(reason);
 
-        synchronized (this.lock)
-        {
-            this.dirtyPrefs.addAll(keys);
-            this.pendingPrefs.removeAll(keys);
-            this.dirty = true;
-        }
+        BitSet requested = WebPreferences.toIds(keys);
+
+        this.setFlags(requested, KeyState.REQUESTED, KeyState.PENDING);
+        this.markDirty();
     }
 
     /**
@@ -480,15 +1291,13 @@ class WebPreferences extends AbstractWebPreferences
      */
     void onSetRequestFailed(Set<String> keys, RequestFailureReason reason)
     {
-        this.requestTimeoutTimer = 0;
+        this.cancel(this.requestTimeoutTimer);
         this.handleFailedRequest(reason);
 
-        synchronized (this.lock)
-        {
-            this.requestedPrefs.addAll(keys);
-            this.pendingPrefs.removeAll(keys);
-            this.dirty = true;
-        }
+        BitSet failed = WebPreferences.toIds(keys);
+
+        this.setFlags(failed, KeyState.DIRTY, 0);
+        this.markDirty();
     }
 
     /**
@@ -496,15 +1305,42 @@ class WebPreferences extends AbstractWebPreferences
      */
     private void handleFailedRequest(RequestFailureReason reason)
     {
+        if (reason == RequestFailureReason.DROPPED)
+        {
+            // Dropped from a full queue, retry without penalty once there is space
+            this.awaitCapacity();
+            return;
+        }
+
         if (reason.isPermanent())
         {
             LiteLoaderLogger.debug("Halting update of preferences for " + this.uuid + " permanently because " + reason);
-            this.updateCheckTimer = -1;
+            this.halt();
+            return;
         }
         
-        int suspendUpdateFor = WebPreferences.UPDATE_ERROR_SUSPEND_TICKS * Math.max(1, reason.getSeverity());
+        int suspendUpdateFor = this.suspendUpdates(reason.getSeverity());
         LiteLoaderLogger.debug("Suspending update of preferences for " + this.uuid + " for " + suspendUpdateFor + " because " + reason);
-        this.updateCheckTimer = suspendUpdateFor;
+    }
+
+    /**
+     * Suspend updates using exponential backoff with jitter, so that
+     * collections which failed together do not all retry on the same tick
+     *
+     * @param severity severity of the error
+     * @return number of ticks updates were suspended for
+     */
+    private int suspendUpdates(int severity)
+    {
+        int failureCount = Math.min(++this.failureCount, 16);
+        long backoff = Math.min((long)WebPreferences.UPDATE_ERROR_SUSPEND_MAX_TICKS,
+                (long)WebPreferences.UPDATE_ERROR_SUSPEND_TICKS * Math.max(1, severity) << (failureCount - 1));
+        int suspendUpdateFor = (int)(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+        if (!this.halted)
+        {
+            this.schedule(this.updateTimer, suspendUpdateFor);
+        }
+        return suspendUpdateFor;
     }
 
     /**
@@ -512,12 +1348,18 @@ class WebPreferences extends AbstractWebPreferences
      */
     protected static void validateKey(String key)
     {
-        if (key == null || !WebPreferences.keyPattern.matcher(key).matches())
+        // Keys in the dictionary were validated when they were interned
+        if (WebPreferencesKeyDictionary.findKey(key) == null && !WebPreferences.isValidKey(key))
         {
             throw new InvalidKeyException("The specified key [" + key + "] is not valid");
         }
     }
 
+    static boolean isValidKey(String key)
+    {
+        return key != null && WebPreferences.keyPattern.matcher(key).matches();
+    }
+
     /**
      * @param key
      * @param value
@@ -525,7 +1367,15 @@ class WebPreferences extends AbstractWebPreferences
     protected static void validateKV(String key, String value)
     {
         WebPreferences.validateKey(key);
-        
+        WebPreferences.validateValue(key, value);
+    }
+
+    /**
+     * @param key
+     * @param value
+     */
+    protected static void validateValue(String key, String value)
+    {
         if (value == null || value.length() > 255)
         {
             throw new InvalidValueException("The specified value [" + value + "] for key [" + key + "] is not valid");
@@ -0,0 +1,419 @@
+package com.mumfrey.webprefs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
+
+/**
+ * Persistent cache of public preference values for a single host, keyed by
+ * UUID. The cache is read from disk on a background thread when it is created
+ * and values are handed to new collections to serve whilst they revalidate
+ * against the server, collections created before the load completes simply
+ * miss. Entries expire after a TTL and the least recently updated entries are
+ * discarded once the cache is full. Changes are written back to disk
+ * periodically on a background thread and by {@link #flush}.
+ *
+ * @author Adam Mummery-Smith
+ */
+class WebPreferencesCache
+{
+    static class CacheEntry
+    {
+        /**
+         * Time the values were last received from the server, in epoch
+         * milliseconds since entries outlive the session
+         */
+        @SerializedName("t")
+        long updated;
+
+        @SerializedName("v")
+        Map<String, String> values;
+
+        /**
+         * Version tag of the values, allows the collection to revalidate
+         * with a conditional request
+         */
+        @SerializedName("e")
+        String version;
+
+        CacheEntry(long updated, Map<String, String> values, String version)
+        {
+            this.updated = updated;
+            this.values = values;
+            this.version = version;
+        }
+    }
+
+    private static final Gson gson = new GsonBuilder().create();
+
+    private static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Delay in ticks between a change and the cache being written to disk
+     */
+    private static final int SAVE_DELAY_TICKS = 20 * 30;
+
+    private static final int FLUSH_TIMEOUT_SECONDS = 5;
+
+    private final File store;
+
+    private final WebPreferencesScheduler scheduler;
+
+    private final WebPreferencesScheduler.Timer saveTimer = new WebPreferencesScheduler.Timer(new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            WebPreferencesCache.this.save();
+        }
+    });
+
+    /**
+     * Entries in order of last update
+     */
+    private LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>();
+
+    private boolean loaded;
+
+    /**
+     * UUIDs which were updated or removed before the stored entries were
+     * loaded, the stored entries for these are stale
+     */
+    private final Set<String> changedWhileLoading = new HashSet<String>();
+
+    private volatile int maxEntries = WebPreferencesCache.DEFAULT_MAX_ENTRIES;
+
+    private volatile long ttlMillis = WebPreferencesCache.DEFAULT_TTL_MILLIS;
+
+    private boolean isDirty;
+
+    /**
+     * Loads and writes the store, a single thread so that writes land in the
+     * order their snapshots were taken and never before the load
+     */
+    private final ExecutorService io = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "WebPreferences cache IO thread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Runnable saveTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            WebPreferencesCache.this.write();
+        }
+    };
+
+    WebPreferencesCache(File store, WebPreferencesScheduler scheduler)
+    {
+        this.store = store;
+        this.scheduler = scheduler;
+
+        this.io.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                WebPreferencesCache.this.onLoaded(WebPreferencesCache.this.load());
+            }
+        });
+    }
+
+    void setLimits(int maxEntries, long ttl, TimeUnit unit)
+    {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = Math.max(0L, unit.toMillis(ttl));
+    }
+
+    /**
+     * Get the cached values for the specified UUID
+     *
+     * @return copy of the cached entry, or null if there is no unexpired
+     *      entry
+     */
+    synchronized CacheEntry get(String uuid)
+    {
+        CacheEntry entry = this.entries.get(uuid);
+        if (entry == null)
+        {
+            return null;
+        }
+
+        if (this.isExpired(entry, System.currentTimeMillis()))
+        {
+            this.entries.remove(uuid);
+            this.markDirty();
+            return null;
+        }
+
+        return new CacheEntry(entry.updated, new HashMap<String, String>(entry.values), entry.version);
+    }
+
+    /**
+     * Store the current values and version for the specified UUID
+     */
+    synchronized void put(String uuid, Map<String, String> values, String version)
+    {
+        // Remove first so that the entry moves to the end of the update order
+        this.onChanged(uuid);
+        boolean removed = this.entries.remove(uuid) != null;
+        if (!values.isEmpty())
+        {
+            this.entries.put(uuid, new CacheEntry(System.currentTimeMillis(), new HashMap<String, String>(values), version));
+            this.trim();
+        }
+        else if (!removed)
+        {
+            return;
+        }
+
+        this.markDirty();
+    }
+
+    synchronized void remove(String uuid)
+    {
+        this.onChanged(uuid);
+        if (this.entries.remove(uuid) != null)
+        {
+            this.markDirty();
+        }
+    }
+
+    private boolean isExpired(CacheEntry entry, long now)
+    {
+        return entry.values == null || now - entry.updated > this.ttlMillis;
+    }
+
+    private void trim()
+    {
+        for (Iterator<CacheEntry> iter = this.entries.values().iterator(); this.entries.size() > this.maxEntries && iter.hasNext();)
+        {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    private void markDirty()
+    {
+        if (!this.isDirty)
+        {
+            this.isDirty = true;
+            this.scheduler.scheduleIfIdle(this.saveTimer, WebPreferencesCache.SAVE_DELAY_TICKS);
+        }
+    }
+
+    private void onChanged(String uuid)
+    {
+        if (!this.loaded)
+        {
+            this.changedWhileLoading.add(uuid);
+        }
+    }
+
+    /**
+     * Merge the stored entries with any changes made whilst they were being
+     * loaded, changes made this session are newer so they are kept last
+     */
+    private synchronized void onLoaded(LinkedHashMap<String, CacheEntry> stored)
+    {
+        stored.keySet().removeAll(this.changedWhileLoading);
+        stored.putAll(this.entries);
+        this.entries = stored;
+        this.changedWhileLoading.clear();
+        this.loaded = true;
+        this.trim();
+
+        // Saves are held back until loaded so that the stored entries are not overwritten
+        if (this.isDirty)
+        {
+            this.scheduler.scheduleIfIdle(this.saveTimer, WebPreferencesCache.SAVE_DELAY_TICKS);
+        }
+    }
+
+    private LinkedHashMap<String, CacheEntry> load()
+    {
+        LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>();
+        if (!this.store.isFile())
+        {
+            return entries;
+        }
+
+        Reader reader = null;
+
+        try
+        {
+            reader = new InputStreamReader(new FileInputStream(this.store), Charsets.UTF_8);
+            Map<String, CacheEntry> stored = WebPreferencesCache.gson.fromJson(reader, new TypeToken<LinkedHashMap<String, CacheEntry>>() {}.getType());
+            if (stored != null)
+            {
+                long now = System.currentTimeMillis();
+                for (Entry<String, CacheEntry> entry : stored.entrySet())
+                {
+                    if (!this.isExpired(entry.getValue(), now))
+                    {
+                        entries.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+
+            LiteLoaderLogger.debug("Loaded %d cached preference sets from %s", entries.size(), this.store);
+        }
+        catch (IOException ex)
+        {
+            LiteLoaderLogger.warning("Could not read preferences cache %s: %s", this.store, ex.getMessage());
+        }
+        catch (JsonParseException ex)
+        {
+            LiteLoaderLogger.warning("Discarding corrupt preferences cache %s: %s", this.store, ex.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                if (reader != null) reader.close();
+            }
+            catch (IOException ex) {}
+        }
+
+        return entries;
+    }
+
+    /**
+     * Write a snapshot of the cache to disk on a background thread
+     */
+    private void save()
+    {
+        this.io.execute(this.saveTask);
+    }
+
+    /**
+     * Write any unsaved changes to disk and wait for all writes to finish,
+     * called on shutdown and when the cache is disabled
+     */
+    void flush()
+    {
+        try
+        {
+            this.io.submit(this.saveTask).get(WebPreferencesCache.FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ex)
+        {
+            LiteLoaderLogger.warning("Could not flush preferences cache %s: %s", this.store, ex.getMessage());
+        }
+        catch (TimeoutException ex)
+        {
+            LiteLoaderLogger.warning("Timed out flushing preferences cache %s", this.store);
+        }
+    }
+
+    /**
+     * Flush the cache and stop its IO thread, the cache must not be used
+     * afterwards
+     */
+    void close()
+    {
+        this.flush();
+        this.io.shutdown();
+    }
+
+    /**
+     * Copy the entries if there are unsaved changes, the copy is serialised
+     * outside the lock
+     *
+     * @return entries to write, or null if there is nothing to write yet
+     */
+    private synchronized Map<String, CacheEntry> snapshot()
+    {
+        if (!this.isDirty || !this.loaded)
+        {
+            return null;
+        }
+
+        this.isDirty = false;
+        return new LinkedHashMap<String, CacheEntry>(this.entries);
+    }
+
+    /**
+     * Write a snapshot of the cache, only called on the IO thread
+     */
+    private void write()
+    {
+        Map<String, CacheEntry> snapshot = this.snapshot();
+        if (snapshot != null)
+        {
+            this.writeFile(WebPreferencesCache.gson.toJson(snapshot));
+        }
+    }
+
+    private void writeFile(String json)
+    {
+        File tempFile = new File(this.store.getPath() + ".tmp");
+        Writer writer = null;
+
+        try
+        {
+            this.store.getParentFile().mkdirs();
+            writer = new OutputStreamWriter(new FileOutputStream(tempFile), Charsets.UTF_8);
+            writer.write(json);
+            writer.close();
+            writer = null;
+
+            if (!tempFile.renameTo(this.store))
+            {
+                this.store.delete();
+                tempFile.renameTo(this.store);
+            }
+        }
+        catch (IOException ex)
+        {
+            LiteLoaderLogger.warning("Could not write preferences cache %s: %s", this.store, ex.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                if (writer != null) writer.close();
+            }
+            catch (IOException ex) {}
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.mumfrey.webprefs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
+import com.mumfrey.webprefs.framework.RequestFailureReason;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesChangeListener;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesProvider;
+
+/**
+ * Host-level change feed for public preference collections. Each collection
+ * remembers the cursor returned by the last changes request which included
+ * it, and refreshing a set of collections asks the server which of them
+ * changed since their cursors so that only the changed collections are
+ * re-fetched. Polls made within the same tick are combined into a single
+ * request. If the server does not support changes requests then the feed
+ * disables itself and every collection is treated as changed.
+ *
+ * @author Adam Mummery-Smith
+ */
+class WebPreferencesChangeFeed
+{
+    /**
+     * Receives the collections which changed out of a set which was queried
+     */
+    interface Receiver
+    {
+        void onChanged(List<AbstractWebPreferences> changed);
+    }
+
+    private final IWebPreferencesProvider provider;
+
+    private final WebPreferencesScheduler scheduler;
+
+    private final WebPreferencesScheduler.Timer flushTimer = new WebPreferencesScheduler.Timer(new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            WebPreferencesChangeFeed.this.flush();
+        }
+    });
+
+    /**
+     * Collections which were polled since the last flush
+     */
+    private final Map<String, AbstractWebPreferences> polled = new LinkedHashMap<String, AbstractWebPreferences>();
+
+    /**
+     * Most recent cursor received from the server, assigned to new
+     * collections since their first request is sent after it was issued
+     */
+    private volatile String latestCursor;
+
+    private volatile boolean unsupported;
+
+    WebPreferencesChangeFeed(IWebPreferencesProvider provider, WebPreferencesScheduler scheduler)
+    {
+        this.provider = provider;
+        this.scheduler = scheduler;
+    }
+
+    String getLatestCursor()
+    {
+        return this.latestCursor;
+    }
+
+    boolean isAvailable()
+    {
+        return !this.unsupported && this.provider.isActive();
+    }
+
+    /**
+     * Queue a poll of the supplied collection, the collection is refreshed if
+     * the server reports that it changed
+     *
+     * @return false if the feed is unavailable and the caller should refresh
+     *      the collection directly
+     */
+    synchronized boolean poll(AbstractWebPreferences prefs)
+    {
+        if (!this.isAvailable())
+        {
+            return false;
+        }
+
+        this.polled.put(prefs.getUUID(), prefs);
+        this.scheduler.scheduleIfIdle(this.flushTimer, 1);
+        return true;
+    }
+
+    private void flush()
+    {
+        List<AbstractWebPreferences> polled;
+        synchronized (this)
+        {
+            polled = new ArrayList<AbstractWebPreferences>(this.polled.values());
+            this.polled.clear();
+        }
+
+        this.query(polled, new Receiver()
+        {
+            @Override
+            public void onChanged(List<AbstractWebPreferences> changed)
+            {
+                for (AbstractWebPreferences prefs : changed)
+                {
+                    prefs.refresh();
+                }
+            }
+        });
+    }
+
+    /**
+     * Determine which of the supplied collections changed on the server. The
+     * receiver is called exactly once, possibly before this method returns,
+     * and is passed every collection if the server could not be asked.
+     */
+    void query(Collection<AbstractWebPreferences> preferences, final Receiver receiver)
+    {
+        final List<AbstractWebPreferences> changed = new ArrayList<AbstractWebPreferences>();
+        final Map<String, Map<String, WebPreferences>> groups = new HashMap<String, Map<String, WebPreferences>>();
+
+        // Collections are grouped by cursor since a cursor only describes the collections it was issued for
+        for (AbstractWebPreferences prefs : preferences)
+        {
+            if (!(prefs instanceof WebPreferences) || prefs.isPrivate())
+            {
+                changed.add(prefs);
+                continue;
+            }
+
+            String cursor = ((WebPreferences)prefs).getChangeCursor();
+            Map<String, WebPreferences> group = groups.get(cursor);
+            if (group == null)
+            {
+                group = new HashMap<String, WebPreferences>();
+                groups.put(cursor, group);
+            }
+            group.put(prefs.getUUID(), (WebPreferences)prefs);
+        }
+
+        if (groups.isEmpty() || !this.isAvailable())
+        {
+            for (Map<String, WebPreferences> group : groups.values())
+            {
+                changed.addAll(group.values());
+            }
+            receiver.onChanged(changed);
+            return;
+        }
+
+        final int[] remaining = { groups.size() };
+        for (Entry<String, Map<String, WebPreferences>> entry : groups.entrySet())
+        {
+            final Map<String, WebPreferences> group = entry.getValue();
+            IWebPreferencesChangeListener listener = new IWebPreferencesChangeListener()
+            {
+                @Override
+                public void onChangesReceived(Set<String> uuids, Set<String> changedUUIDs, String cursor)
+                {
+                    WebPreferencesChangeFeed.this.latestCursor = cursor;
+                    List<AbstractWebPreferences> groupChanged = new ArrayList<AbstractWebPreferences>();
+                    for (WebPreferences prefs : group.values())
+                    {
+                        boolean isChanged = changedUUIDs.contains(prefs.getUUID());
+                        prefs.onChangeCursor(cursor, isChanged);
+                        if (isChanged)
+                        {
+                            groupChanged.add(prefs);
+                        }
+                    }
+                    this.complete(groupChanged);
+                }
+
+                @Override
+                public void onChangesRequestFailed(Set<String> uuids, RequestFailureReason reason)
+                {
+                    if (reason == RequestFailureReason.NOT_FOUND && !WebPreferencesChangeFeed.this.unsupported)
+                    {
+                        LiteLoaderLogger.info("Preferences server does not support changes requests, refreshing collections individually");
+                        WebPreferencesChangeFeed.this.unsupported = true;
+                    }
+                    this.complete(new ArrayList<AbstractWebPreferences>(group.values()));
+                }
+
+                private void complete(List<AbstractWebPreferences> groupChanged)
+                {
+                    synchronized (remaining)
+                    {
+                        changed.addAll(groupChanged);
+                        if (--remaining[0] > 0)
+                        {
+                            return;
+                        }
+                    }
+
+                    receiver.onChanged(changed);
+                }
+            };
+
+            if (!this.provider.requestChanges(listener, Collections.unmodifiableSet(group.keySet()), entry.getKey()))
+            {
+                listener.onChangesRequestFailed(group.keySet(), RequestFailureReason.DROPPED);
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.mumfrey.webprefs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Predicate;
+import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
+
+/**
+ * Spreads the re-poll of known preference collections after joining a server
+ * over a window, instead of polling every collection at once. Collections
+ * which were refreshed recently are skipped, and collections belonging to
+ * players who are present on the new server are refreshed before the rest.
+ * Presence is checked after a short delay so that the server has a chance to
+ * send the player list. If a change feed is available then the server is
+ * asked which collections changed first, and only those are refreshed.
+ *
+ * @author Adam Mummery-Smith
+ */
+class WebPreferencesJoinRefresh
+{
+    private static final int DEFAULT_WINDOW_TICKS = 20 * 15;
+
+    /**
+     * Ticks to wait before the first refresh, so that the player list has
+     * been received by the time presence is checked
+     */
+    private static final int PRESENCE_DELAY_TICKS = 20 * 2;
+
+    /**
+     * Maximum random delay added to the start of the refresh, so that clients
+     * which joined together do not refresh in lockstep
+     */
+    private static final int START_JITTER_TICKS = 20;
+
+    private static final long DEFAULT_MIN_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(2);
+
+    private final WebPreferencesScheduler scheduler;
+
+    /**
+     * Returns true if the player with the supplied UUID is present
+     */
+    private final Predicate<String> presence;
+
+    /**
+     * Runs on the game thread since presence is read from the client's
+     * player list
+     */
+    private final WebPreferencesScheduler.Timer timer = new WebPreferencesScheduler.Timer(new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            WebPreferencesJoinRefresh.this.onTimer();
+        }
+    }, true);
+
+    /**
+     * Collections waiting to be refreshed, in refresh order
+     */
+    private final Deque<AbstractWebPreferences> pending = new ArrayDeque<AbstractWebPreferences>();
+
+    /**
+     * True once pending collections have been ordered by presence
+     */
+    private boolean ordered;
+
+    /**
+     * Refreshes per tick required to finish within the window
+     */
+    private double rate;
+
+    /**
+     * Refreshes accrued but not yet performed
+     */
+    private double budget;
+
+    private int delay;
+
+    /**
+     * Incremented each time a refresh is started, so that the result of a
+     * changes request for a refresh which has been replaced is discarded
+     */
+    private int generation;
+
+    private volatile WebPreferencesChangeFeed changeFeed;
+
+    private volatile int windowTicks = WebPreferencesJoinRefresh.DEFAULT_WINDOW_TICKS;
+
+    private volatile long minIntervalNanos = WebPreferencesJoinRefresh.DEFAULT_MIN_INTERVAL_NANOS;
+
+    WebPreferencesJoinRefresh(WebPreferencesScheduler scheduler, Predicate<String> presence)
+    {
+        this.scheduler = scheduler;
+        this.presence = presence;
+    }
+
+    int getWindowTicks()
+    {
+        return this.windowTicks;
+    }
+
+    void setWindowTicks(int windowTicks)
+    {
+        this.windowTicks = Math.max(WebPreferencesJoinRefresh.PRESENCE_DELAY_TICKS + 1, windowTicks);
+    }
+
+    void setChangeFeed(WebPreferencesChangeFeed changeFeed)
+    {
+        this.changeFeed = changeFeed;
+    }
+
+    long getMinInterval(TimeUnit unit)
+    {
+        return unit.convert(this.minIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void setMinInterval(long minInterval, TimeUnit unit)
+    {
+        this.minIntervalNanos = Math.max(0L, unit.toNanos(minInterval));
+    }
+
+    /**
+     * Get the number of collections still waiting to be refreshed
+     */
+    synchronized int getPendingCount()
+    {
+        return this.pending.size();
+    }
+
+    /**
+     * Begin refreshing the supplied collections, replaces any refresh which is
+     * still in progress
+     */
+    void start(Collection<AbstractWebPreferences> preferences)
+    {
+        long refreshedSince = System.nanoTime() - this.minIntervalNanos;
+        List<AbstractWebPreferences> candidates = new ArrayList<AbstractWebPreferences>();
+        for (AbstractWebPreferences prefs : preferences)
+        {
+            if (!prefs.isRefreshedSince(refreshedSince))
+            {
+                candidates.add(prefs);
+            }
+        }
+
+        final int generation;
+        synchronized (this)
+        {
+            generation = ++this.generation;
+            this.pending.clear();
+            this.scheduler.cancel(this.timer);
+        }
+
+        WebPreferencesChangeFeed changeFeed = this.changeFeed;
+        if (changeFeed == null || candidates.isEmpty())
+        {
+            this.begin(generation, candidates);
+            return;
+        }
+
+        changeFeed.query(candidates, new WebPreferencesChangeFeed.Receiver()
+        {
+            @Override
+            public void onChanged(List<AbstractWebPreferences> changed)
+            {
+                WebPreferencesJoinRefresh.this.begin(generation, changed);
+            }
+        });
+    }
+
+    private synchronized void begin(int generation, List<AbstractWebPreferences> candidates)
+    {
+        if (generation != this.generation)
+        {
+            return;
+        }
+
+        Collections.shuffle(candidates);
+        this.pending.clear();
+        this.pending.addAll(candidates);
+        this.ordered = false;
+        this.budget = 0;
+
+        if (this.pending.isEmpty())
+        {
+            this.scheduler.cancel(this.timer);
+            return;
+        }
+
+        int startDelay = WebPreferencesJoinRefresh.PRESENCE_DELAY_TICKS
+                + ThreadLocalRandom.current().nextInt(WebPreferencesJoinRefresh.START_JITTER_TICKS + 1);
+        this.rate = (double)this.pending.size() / Math.max(1, this.windowTicks - startDelay);
+        this.delay = 1;
+        this.scheduler.schedule(this.timer, startDelay);
+    }
+
+    /**
+     * Stop tracking the supplied collection, for example because it was
+     * released
+     */
+    synchronized void remove(AbstractWebPreferences prefs)
+    {
+        this.pending.remove(prefs);
+    }
+
+    private void onTimer()
+    {
+        List<AbstractWebPreferences> due = new ArrayList<AbstractWebPreferences>();
+
+        synchronized (this)
+        {
+            if (!this.ordered)
+            {
+                this.orderByPresence();
+            }
+
+            this.budget += this.rate * this.delay;
+            while (this.budget >= 1.0 && !this.pending.isEmpty())
+            {
+                due.add(this.pending.poll());
+                this.budget -= 1.0;
+            }
+
+            if (!this.pending.isEmpty())
+            {
+                // Sleep until the next refresh is due rather than waking every tick
+                this.delay = Math.max(1, (int)Math.ceil((1.0 - this.budget) / this.rate));
+                this.scheduler.schedule(this.timer, this.delay);
+            }
+        }
+
+        for (AbstractWebPreferences prefs : due)
+        {
+            try
+            {
+                prefs.refresh();
+            }
+            catch (Exception ex)
+            {
+                LiteLoaderLogger.warning(ex, "Error refreshing preferences for %s: %s", prefs.getUUID(), ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Move collections for players who are present to the front of the
+     * queue, caller must hold the lock
+     */
+    private void orderByPresence()
+    {
+        List<AbstractWebPreferences> absent = new ArrayList<AbstractWebPreferences>();
+        List<AbstractWebPreferences> present = new ArrayList<AbstractWebPreferences>();
+
+        for (AbstractWebPreferences prefs : this.pending)
+        {
+            if (this.isPresent(prefs))
+            {
+                present.add(prefs);
+            }
+            else
+            {
+                absent.add(prefs);
+            }
+        }
+
+        this.pending.clear();
+        this.pending.addAll(present);
+        this.pending.addAll(absent);
+        this.ordered = true;
+    }
+
+    private boolean isPresent(AbstractWebPreferences prefs)
+    {
+        try
+        {
+            return this.presence.apply(prefs.getUUID());
+        }
+        catch (Exception ex)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.mumfrey.webprefs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mumfrey.webprefs.exceptions.InvalidKeyException;
+
+/**
+ * Global dictionary of validated preference keys, each key is assigned a
+ * small integer id. Collections store their values and key state in arrays
+ * and bitsets indexed by id, since in practice every collection uses the same
+ * small set of keys. Looking up a key which has already been interned
+ * requires no validation and no allocation. Ids are never reused.
+ *
+ * @author Adam Mummery-Smith
+ */
+final class WebPreferencesKeyDictionary
+{
+    private static final Map<String, PreferenceKey> keys = new ConcurrentHashMap<String, PreferenceKey>();
+
+    /**
+     * Keys by id, replaced with a larger array when full
+     */
+    private static volatile PreferenceKey[] keysById = new PreferenceKey[32];
+
+    private static int size;
+
+    private WebPreferencesKeyDictionary() {}
+
+    /**
+     * Get the interned handle for the specified key, validating and interning
+     * the key if it has not been seen before
+     *
+     * @throws InvalidKeyException if the key is not valid
+     */
+    static PreferenceKey getKey(String key)
+    {
+        PreferenceKey prefKey = key != null ? WebPreferencesKeyDictionary.keys.get(key) : null;
+        return prefKey != null ? prefKey : WebPreferencesKeyDictionary.intern(key);
+    }
+
+    /**
+     * Get the handle for the specified key without interning it
+     *
+     * @return the key, or null if the key has not been interned
+     */
+    static PreferenceKey findKey(String key)
+    {
+        return key != null ? WebPreferencesKeyDictionary.keys.get(key) : null;
+    }
+
+    static String getName(int id)
+    {
+        return WebPreferencesKeyDictionary.keysById[id].getName();
+    }
+
+    /**
+     * Get the number of keys interned so far, all ids are less than this
+     */
+    static int size()
+    {
+        return WebPreferencesKeyDictionary.keys.size();
+    }
+
+    private static synchronized PreferenceKey intern(String key)
+    {
+        if (!WebPreferences.isValidKey(key))
+        {
+            throw new InvalidKeyException("The specified key [" + key + "] is not valid");
+        }
+
+        PreferenceKey existing = WebPreferencesKeyDictionary.keys.get(key);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        PreferenceKey prefKey = new PreferenceKey(key, WebPreferencesKeyDictionary.size++);
+        PreferenceKey[] keysById = WebPreferencesKeyDictionary.keysById;
+        if (prefKey.id >= keysById.length)
+        {
+            PreferenceKey[] grown = new PreferenceKey[keysById.length * 2];
+            System.arraycopy(keysById, 0, grown, 0, keysById.length);
+            keysById = grown;
+        }
+
+        // Publish by id before by name so that readers which obtain the key can always resolve its id
+        keysById[prefKey.id] = prefKey;
+        WebPreferencesKeyDictionary.keysById = keysById;
+        WebPreferencesKeyDictionary.keys.put(key, prefKey);
+        return prefKey;
+    }
+}
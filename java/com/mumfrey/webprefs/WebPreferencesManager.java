@@ -4,27 +4,37 @@ import java.io.File;
 import java.net.Proxy;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.google.common.base.Predicate;
 import com.mojang.authlib.GameProfile;
 import com.mojang.realmsclient.dto.RealmsServer;
 import com.mumfrey.liteloader.JoinGameListener;
+import com.mumfrey.liteloader.ShutdownListener;
 import com.mumfrey.liteloader.Tickable;
 import com.mumfrey.liteloader.core.LiteLoader;
+import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
 import com.mumfrey.webprefs.exceptions.InvalidServiceException;
 import com.mumfrey.webprefs.exceptions.InvalidUUIDException;
+import com.mumfrey.webprefs.framework.SchedulingMode;
 import com.mumfrey.webprefs.framework.WebPreferencesProvider;
 import com.mumfrey.webprefs.interfaces.IWebPreferences;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.multiplayer.ServerData;
+import net.minecraft.client.network.NetHandlerPlayClient;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.network.INetHandler;
 import net.minecraft.network.play.server.SPacketJoinGame;
@@ -50,7 +60,7 @@ public final class WebPreferencesManager
      *
      * @author Adam Mummery-Smith
      */
-    static class WebPreferencesUpdateDeamon implements Tickable, JoinGameListener
+    static class WebPreferencesUpdateDeamon implements Tickable, JoinGameListener, ShutdownListener
     {
         @Override
         public String getName()
@@ -85,6 +95,15 @@ public final class WebPreferencesManager
                 }
             }
         }
+
+        @Override
+        public void onShutDown()
+        {
+            for (WebPreferencesManager manager : WebPreferencesManager.managers.values())
+            {
+                manager.onShutDown();
+            }
+        }
         
         @Override
         public void onJoinGame(INetHandler netHandler, SPacketJoinGame joinGamePacket, ServerData serverData, RealmsServer realmsServer)
@@ -101,6 +120,15 @@ public final class WebPreferencesManager
      */
     private static final String DEFAULT_HOSTNAME = "kv.liteloader.com";
 
+    /**
+     * Interval between sweeps for idle preference collections
+     */
+    private static final int EVICTION_INTERVAL_TICKS = 20 * 30;
+
+    private static final int DEFAULT_MAX_COLLECTIONS = 1024;
+
+    private static final long DEFAULT_IDLE_TTL_NANOS = TimeUnit.MINUTES.toNanos(15);
+
     /**
      * Regex for validating UUIDs
      */
@@ -120,6 +148,8 @@ public final class WebPreferencesManager
      * Session for this instance
      */
     private final Session session;
+
+    private final String hostName;
     
     /**
      * Preference provider, manages queueing requests and passing responses back
@@ -130,7 +160,55 @@ public final class WebPreferencesManager
     /**
      * All preference sets, for iteration purposes
      */
-    private final List<AbstractWebPreferences> allPreferences = new LinkedList<AbstractWebPreferences>();
+    private final Set<AbstractWebPreferences> allPreferences = new LinkedHashSet<AbstractWebPreferences>();
+
+    /**
+     * Timing wheel which owns the update, timeout and suspension deadlines of
+     * all preference sets
+     */
+    private final WebPreferencesScheduler scheduler = new WebPreferencesScheduler();
+
+    /**
+     * Maximum number of preference sets to retain before the least recently
+     * accessed sets are evicted
+     */
+    private volatile int maxCollections = WebPreferencesManager.DEFAULT_MAX_COLLECTIONS;
+
+    /**
+     * Time after which a preference set which has not been accessed is
+     * evicted
+     */
+    private volatile long idleTTLNanos = WebPreferencesManager.DEFAULT_IDLE_TTL_NANOS;
+
+    private int ticksSinceEviction;
+
+    /**
+     * Persistent cache of public preferences, null unless enabled
+     */
+    private volatile WebPreferencesCache cache;
+
+    /**
+     * Change feed for public preference sets, null unless enabled
+     */
+    private volatile WebPreferencesChangeFeed changeFeed;
+
+    /**
+     * Subscription to values pushed by the server for public preference sets,
+     * null until push is first enabled
+     */
+    private volatile WebPreferencesSubscriber subscriber;
+
+    /**
+     * Staggers the refresh of preference sets after joining a server
+     */
+    private final WebPreferencesJoinRefresh joinRefresh = new WebPreferencesJoinRefresh(this.scheduler, new Predicate<String>()
+    {
+        @Override
+        public boolean apply(String uuid)
+        {
+            return WebPreferencesManager.this.isPlayerPresent(uuid);
+        }
+    });
     
     /**
      * All public preference sets, mapped by UUID
@@ -142,38 +220,376 @@ public final class WebPreferencesManager
      */
     private final Map<String, IWebPreferences> preferencesPrivate = new HashMap<String, IWebPreferences>();
 
+    /**
+     * Public preference sets indexed by the player's {@link UUID}, so that
+     * lookups by UUID do not need to build and sanitise the string form. Only
+     * contains collections which are also in {@link #preferencesPublic}.
+     */
+    private final Map<UUID, IWebPreferences> preferencesPublicById = new HashMap<UUID, IWebPreferences>();
+
+    /**
+     * Private preference sets indexed by the player's {@link UUID}
+     */
+    private final Map<UUID, IWebPreferences> preferencesPrivateById = new HashMap<UUID, IWebPreferences>();
+
     private WebPreferencesManager(Proxy proxy, Session session, String hostName)
     {
         this.session = session;
+        this.hostName = hostName;
         this.provider = new WebPreferencesProvider(proxy, session, hostName, 50);
+        this.provider.addTickListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                WebPreferencesManager.this.scheduler.onTick();
+            }
+        });
     }
     
+    /**
+     * Get the preference provider for this manager, can be used to tune
+     * provider behaviour such as concurrency and batching for this host
+     *
+     * @return preference provider
+     */
+    public WebPreferencesProvider getProvider()
+    {
+        return this.provider;
+    }
+
+    /**
+     * Set whether update, timeout and retry timers for this manager's
+     * preference collections run on the game clock or on real time, see
+     * {@link SchedulingMode}
+     */
+    public void setSchedulingMode(SchedulingMode schedulingMode)
+    {
+        this.provider.setSchedulingMode(schedulingMode);
+    }
+
+    public SchedulingMode getSchedulingMode()
+    {
+        return this.provider.getSchedulingMode();
+    }
+
+    /**
+     * Set the limits for retaining preference collections. Collections which
+     * have not been accessed for longer than the idle TTL are evicted, as are
+     * the least recently accessed collections once there are more than
+     * maxCollections. The local player's collections, and collections with
+     * changes or requests in flight, are never evicted. Evicted collections
+     * stop updating and a new collection is created the next time the
+     * player's preferences are requested from the manager, so consumers should
+     * not hold on to collections for other players.
+     *
+     * @param maxCollections maximum number of collections to retain
+     * @param idleTTL time after which idle collections are evicted
+     * @param unit time unit for idleTTL
+     */
+    public void setEvictionPolicy(int maxCollections, long idleTTL, TimeUnit unit)
+    {
+        this.maxCollections = Math.max(1, maxCollections);
+        this.idleTTLNanos = unit.toNanos(idleTTL);
+    }
+
+    /**
+     * Get the number of preference collections currently held
+     */
+    public int getCollectionCount()
+    {
+        return this.allPreferences.size();
+    }
+
     void onTick()
     {
+        // Our timers are driven by the provider, which ignores game ticks in wall clock mode
         this.provider.onTick();
-        
+        this.scheduler.runGameThreadTimers();
+
+        if (++this.ticksSinceEviction >= WebPreferencesManager.EVICTION_INTERVAL_TICKS)
+        {
+            this.ticksSinceEviction = 0;
+            this.evictIdleCollections();
+        }
+    }
+
+    /**
+     * Write out changes which have not been saved yet, since the timers which
+     * would save them will not run again
+     */
+    void onShutDown()
+    {
+        WebPreferencesCache cache = this.cache;
+        if (cache != null)
+        {
+            cache.flush();
+        }
+    }
+
+    /**
+     * Evict collections which have been idle for longer than the TTL, and the
+     * least recently accessed collections whilst there are too many
+     */
+    private void evictIdleCollections()
+    {
+        List<AbstractWebPreferences> candidates = new ArrayList<AbstractWebPreferences>();
         for (AbstractWebPreferences prefs : this.allPreferences)
         {
-            try
+            if (prefs.isEvictable())
+            {
+                candidates.add(prefs);
+            }
+        }
+
+        Collections.sort(candidates, new Comparator<AbstractWebPreferences>()
+        {
+            @Override
+            public int compare(AbstractWebPreferences a, AbstractWebPreferences b)
             {
-                prefs.onTick();
+                return Long.signum(a.getLastAccessed() - b.getLastAccessed());
             }
-            catch (Exception ex) {}
+        });
+
+        long now = System.nanoTime();
+        int excess = this.allPreferences.size() - this.maxCollections;
+        int evicted = 0;
+
+        for (AbstractWebPreferences prefs : candidates)
+        {
+            if (excess - evicted <= 0 && now - prefs.getLastAccessed() <= this.idleTTLNanos)
+            {
+                // Candidates are in access order so the rest are more recent
+                break;
+            }
+
+            this.evict(prefs);
+            evicted++;
+        }
+
+        if (evicted > 0)
+        {
+            LiteLoaderLogger.debug("WebPreferencesManager [%s] evicted %d idle preference collections", this.hostName, evicted);
+        }
+    }
+
+    private void evict(AbstractWebPreferences prefs)
+    {
+        String uuid = prefs.getUUID();
+        Map<String, IWebPreferences> preferences = prefs.isPrivate() ? this.preferencesPrivate : this.preferencesPublic;
+        if (preferences.get(uuid) == prefs)
+        {
+            preferences.remove(uuid);
+        }
+
+        this.discard(prefs);
+
+        // Only cancel if the player's other collection has gone too, since requests are cancelled by UUID
+        Map<String, IWebPreferences> otherPreferences = prefs.isPrivate() ? this.preferencesPublic : this.preferencesPrivate;
+        if (!otherPreferences.containsKey(uuid))
+        {
+            this.provider.cancelRequests(uuid);
+        }
+    }
+
+    private void discard(AbstractWebPreferences prefs)
+    {
+        // Collections created from a string UUID may not be indexed by id, so only remove a matching entry
+        if (WebPreferencesManager.uuidPattern.matcher(prefs.getUUID()).matches())
+        {
+            Map<UUID, IWebPreferences> preferencesById = prefs.isPrivate() ? this.preferencesPrivateById : this.preferencesPublicById;
+            preferencesById.remove(WebPreferencesManager.toUUID(prefs.getUUID()), prefs);
+        }
+        this.allPreferences.remove(prefs);
+        this.joinRefresh.remove(prefs);
+        prefs.onReleased();
+    }
+
+    /**
+     * Schedule an eviction sweep on the next tick if there are too many
+     * collections
+     */
+    private void checkCapacity()
+    {
+        if (this.allPreferences.size() > this.maxCollections)
+        {
+            this.ticksSinceEviction = WebPreferencesManager.EVICTION_INTERVAL_TICKS;
         }
     }
     
-    void onJoinGame()
+    /**
+     * Enable or disable the persistent cache of public preferences for this
+     * host. When enabled, values received for public collections are stored
+     * on disk and served immediately by new collections in later sessions
+     * whilst they are refreshed from the server in the background. Only
+     * collections created after the cache is enabled use the cache, disabling
+     * the cache writes out pending changes and detaches all collections.
+     */
+    public void setPersistentCacheEnabled(boolean enabled)
+    {
+        if (enabled && this.cache == null)
+        {
+            File store = new File(new File(LiteLoader.getCommonConfigFolder(), "webprefs-cache"),
+                    this.hostName.replaceAll("[^a-zA-Z0-9_\\-\\.]", "_") + ".json");
+            this.cache = new WebPreferencesCache(store, this.scheduler);
+        }
+        else if (!enabled && this.cache != null)
+        {
+            WebPreferencesCache cache = this.cache;
+            this.cache = null;
+
+            for (AbstractWebPreferences prefs : this.allPreferences)
+            {
+                if (prefs instanceof WebPreferences)
+                {
+                    ((WebPreferences)prefs).setCache(null);
+                }
+            }
+
+            cache.close();
+        }
+    }
+
+    public boolean isPersistentCacheEnabled()
+    {
+        return this.cache != null;
+    }
+
+    /**
+     * Set the limits for the persistent cache, entries older than the TTL are
+     * not served and the least recently updated entries are discarded once
+     * the cache holds more than maxEntries players
+     */
+    public void setPersistentCacheLimits(int maxEntries, long ttl, TimeUnit unit)
+    {
+        WebPreferencesCache cache = this.cache;
+        if (cache == null)
+        {
+            throw new IllegalStateException("The persistent cache is not enabled");
+        }
+
+        cache.setLimits(maxEntries, ttl, unit);
+    }
+
+    /**
+     * Enable or disable the change feed for this host. When enabled, polling
+     * public collections and joining a server first ask the server which
+     * collections changed, in a single request, and only the changed
+     * collections are re-fetched. The host must support changes requests,
+     * the feed disables itself if it does not.
+     */
+    public void setChangeFeedEnabled(boolean enabled)
     {
+        WebPreferencesChangeFeed changeFeed = null;
+        if (enabled)
+        {
+            changeFeed = this.changeFeed != null ? this.changeFeed : new WebPreferencesChangeFeed(this.provider, this.scheduler);
+        }
+
+        this.changeFeed = changeFeed;
+        this.joinRefresh.setChangeFeed(changeFeed);
         for (AbstractWebPreferences prefs : this.allPreferences)
         {
-            try
+            if (prefs instanceof WebPreferences && !prefs.isPrivate())
             {
-                prefs.poll();
+                ((WebPreferences)prefs).setChangeFeed(changeFeed);
             }
-            catch (Exception ex) {}
         }
     }
 
+    public boolean isChangeFeedEnabled()
+    {
+        return this.changeFeed != null;
+    }
+
+    /**
+     * Enable or disable pushed updates for this host. When enabled, public
+     * collections subscribe to changes with a long-poll request held open by
+     * the server, and changed values are applied as soon as they are pushed
+     * without the collections being polled. The host must support
+     * subscriptions, the subscriber stops itself if it does not.
+     */
+    public void setPushEnabled(boolean enabled)
+    {
+        if (enabled && this.subscriber == null)
+        {
+            this.subscriber = new WebPreferencesSubscriber(this.provider, this.scheduler);
+        }
+
+        WebPreferencesSubscriber subscriber = this.subscriber;
+        if (subscriber == null)
+        {
+            return;
+        }
+
+        for (AbstractWebPreferences prefs : this.allPreferences)
+        {
+            if (prefs instanceof WebPreferences && !prefs.isPrivate())
+            {
+                ((WebPreferences)prefs).setSubscriber(enabled ? subscriber : null);
+            }
+        }
+
+        if (enabled)
+        {
+            subscriber.start();
+        }
+        else
+        {
+            subscriber.stop();
+        }
+    }
+
+    public boolean isPushEnabled()
+    {
+        WebPreferencesSubscriber subscriber = this.subscriber;
+        return subscriber != null && subscriber.isRunning();
+    }
+
+    /**
+     * Set the window over which known preference collections are refreshed
+     * after joining a server
+     */
+    public void setJoinRefreshWindow(long window, TimeUnit unit)
+    {
+        this.joinRefresh.setWindowTicks((int)Math.min(Integer.MAX_VALUE, unit.toMillis(window) / 50));
+    }
+
+    /**
+     * Set the minimum age of a collection's values before it is refreshed
+     * after joining a server, collections refreshed more recently than this
+     * are skipped
+     */
+    public void setJoinRefreshMinInterval(long minInterval, TimeUnit unit)
+    {
+        this.joinRefresh.setMinInterval(minInterval, unit);
+    }
+
+    void onJoinGame()
+    {
+        this.joinRefresh.start(new ArrayList<AbstractWebPreferences>(this.allPreferences));
+    }
+
+    /**
+     * Get whether the player with the specified UUID is in the current
+     * server's player list
+     */
+    boolean isPlayerPresent(String uuid)
+    {
+        if (uuid.equals(this.session.getPlayerID()))
+        {
+            return true;
+        }
+
+        NetHandlerPlayClient connection = Minecraft.getMinecraft().getConnection();
+        return connection != null && connection.getPlayerInfo(WebPreferencesManager.toUUID(uuid)) != null;
+    }
+
+    private static UUID toUUID(String uuid)
+    {
+        return new UUID(Long.parseUnsignedLong(uuid.substring(0, 16), 16), Long.parseUnsignedLong(uuid.substring(16, 32), 16));
+    }
+
     
     /**
      * Get a public or private preferences collection for the local player. If
@@ -292,7 +708,23 @@ public final class WebPreferencesManager
      */
     public IWebPreferences getPreferences(UUID uuid, boolean privatePrefs)
     {
-        return uuid != null ? this.getPreferences(uuid.toString(), privatePrefs) : null;
+        if (uuid == null)
+        {
+            return null;
+        }
+
+        // Fast path for existing collections, the string form is only built when the collection is created
+        Map<UUID, IWebPreferences> preferencesById = privatePrefs ? this.preferencesPrivateById : this.preferencesPublicById;
+        IWebPreferences prefs = preferencesById.get(uuid);
+        if (prefs != null)
+        {
+            ((AbstractWebPreferences)prefs).touch();
+            return prefs;
+        }
+
+        prefs = this.getPreferences(uuid.toString(), privatePrefs);
+        preferencesById.put(uuid, prefs);
+        return prefs;
     }
     
     public IWebPreferences getPreferences(String uuid, boolean privatePrefs)
@@ -305,27 +737,100 @@ public final class WebPreferencesManager
         if (prefs == null)
         {
             WebPreferences newPrefs = new WebPreferences(this.provider, uuid, privatePrefs, !uuid.equals(this.session.getPlayerID()));
+            newPrefs.setScheduler(this.scheduler);
+            if (!privatePrefs)
+            {
+                newPrefs.setCache(this.cache);
+                newPrefs.setChangeFeed(this.changeFeed);
+                if (this.isPushEnabled())
+                {
+                    newPrefs.setSubscriber(this.subscriber);
+                }
+            }
             this.allPreferences.add(newPrefs);
             preferences.put(uuid, newPrefs);
             prefs = newPrefs;
+            this.checkCapacity();
+        }
+        else
+        {
+            ((AbstractWebPreferences)prefs).touch();
         }
         
         return prefs;
     }
     
+    /**
+     * Release the preference collections for the specified player, for example
+     * when the player leaves the server. Queued and in-flight requests for the
+     * player are cancelled and the collections are discarded, consumers should
+     * not use a released collection. The local player's collections cannot be
+     * released.
+     * 
+     * @param player Player to release preferences for
+     * @return true if any collections were released
+     */
+    public boolean release(EntityPlayer player)
+    {
+        GameProfile gameProfile = player != null ? player.getGameProfile() : null;
+        return gameProfile != null && this.release(gameProfile.getId());
+    }
+
+    /**
+     * Release the preference collections for the specified player UUID, see
+     * {@link #release(EntityPlayer)}
+     * 
+     * @param uuid UUID to release preferences for
+     * @return true if any collections were released
+     */
+    public boolean release(UUID uuid)
+    {
+        return uuid != null && this.release(uuid.toString());
+    }
+
+    public boolean release(String uuid)
+    {
+        uuid = this.sanitiseUUID(uuid);
+        if (uuid.equals(this.session.getPlayerID()))
+        {
+            return false;
+        }
+
+        boolean released = this.release(this.preferencesPublic, uuid) | this.release(this.preferencesPrivate, uuid);
+        this.provider.cancelRequests(uuid);
+        return released;
+    }
+
+    private boolean release(Map<String, IWebPreferences> preferences, String uuid)
+    {
+        IWebPreferences prefs = preferences.remove(uuid);
+        if (prefs instanceof AbstractWebPreferences)
+        {
+            this.discard((AbstractWebPreferences)prefs);
+        }
+
+        return prefs != null;
+    }
+    
     private IWebPreferences getOfflinePreferences(UUID uuid, boolean privatePrefs, boolean readOnly, boolean dummy)
     {
         Map<String, IWebPreferences> preferences = privatePrefs ? this.preferencesPrivate : this.preferencesPublic;
-        IWebPreferences prefs = preferences.get(uuid);
+        IWebPreferences prefs = preferences.get(uuid.toString());
         
         if (prefs == null)
         {
             AbstractWebPreferences newPrefs = dummy
                     ? new DummyOfflineWebPreferences(uuid, privatePrefs, readOnly)
                     : new OfflineWebPreferences(uuid, privatePrefs, readOnly);
+            newPrefs.setScheduler(this.scheduler);
             this.allPreferences.add(newPrefs);
             preferences.put(uuid.toString(), newPrefs);
             prefs = newPrefs;
+            this.checkCapacity();
+        }
+        else
+        {
+            ((AbstractWebPreferences)prefs).touch();
         }
         
         return prefs;
@@ -0,0 +1,127 @@
+package com.mumfrey.webprefs;
+
+/**
+ * A raw preference value parsed as a particular type. Collections keep the
+ * most recent parsed value for each key so that typed accessors only parse
+ * a value when it changes, a parsed value applies only whilst the collection
+ * still holds the same raw value instance.
+ *
+ * @author Adam Mummery-Smith
+ */
+final class WebPreferencesParsedValue
+{
+    /**
+     * Types supported by the typed accessors
+     */
+    enum Type
+    {
+        INT,
+        FLOAT,
+        BOOLEAN,
+        COLOR
+    }
+
+    /**
+     * Raw value this value was parsed from
+     */
+    final String raw;
+
+    final Type type;
+
+    /**
+     * False if the raw value could not be parsed as the type, in which case
+     * accessors return the caller's default
+     */
+    final boolean valid;
+
+    /**
+     * Parsed value for INT, BOOLEAN (1 or 0) and COLOR
+     */
+    final int intValue;
+
+    /**
+     * Parsed value for FLOAT
+     */
+    final float floatValue;
+
+    private WebPreferencesParsedValue(String raw, Type type, boolean valid, int intValue, float floatValue)
+    {
+        this.raw = raw;
+        this.type = type;
+        this.valid = valid;
+        this.intValue = intValue;
+        this.floatValue = floatValue;
+    }
+
+    boolean isFor(String raw, Type type)
+    {
+        return this.raw == raw && this.type == type;
+    }
+
+    static WebPreferencesParsedValue parse(String raw, Type type)
+    {
+        String value = raw.trim();
+        try
+        {
+            switch (type)
+            {
+                case INT:
+                    return new WebPreferencesParsedValue(raw, type, true, Integer.parseInt(value), 0.0F);
+
+                case FLOAT:
+                    float floatValue = Float.parseFloat(value);
+                    return new WebPreferencesParsedValue(raw, type, !Float.isNaN(floatValue), 0, floatValue);
+
+                case BOOLEAN:
+                    if ("true".equalsIgnoreCase(value) || "1".equals(value))
+                    {
+                        return new WebPreferencesParsedValue(raw, type, true, 1, 0.0F);
+                    }
+                    if ("false".equalsIgnoreCase(value) || "0".equals(value))
+                    {
+                        return new WebPreferencesParsedValue(raw, type, true, 0, 0.0F);
+                    }
+                    break;
+
+                case COLOR:
+                    return WebPreferencesParsedValue.parseColor(raw, value);
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            // invalid
+        }
+
+        return new WebPreferencesParsedValue(raw, type, false, 0, 0.0F);
+    }
+
+    /**
+     * Colours are hexadecimal with an optional # or 0x prefix, six digit
+     * values are RGB and are returned fully opaque, eight digit values are
+     * ARGB
+     */
+    private static WebPreferencesParsedValue parseColor(String raw, String value)
+    {
+        if (value.startsWith("#"))
+        {
+            value = value.substring(1);
+        }
+        else if (value.startsWith("0x") || value.startsWith("0X"))
+        {
+            value = value.substring(2);
+        }
+
+        if ((value.length() != 6 && value.length() != 8) || Character.digit(value.charAt(0), 16) < 0)
+        {
+            throw new NumberFormatException();
+        }
+
+        int color = (int)Long.parseLong(value, 16);
+        if (value.length() == 6)
+        {
+            color |= 0xFF000000;
+        }
+
+        return new WebPreferencesParsedValue(raw, Type.COLOR, true, color, 0.0F);
+    }
+}
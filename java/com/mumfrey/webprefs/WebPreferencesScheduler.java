@@ -0,0 +1,259 @@
+package com.mumfrey.webprefs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
+
+/**
+ * Hashed timing wheel which owns the deadlines of all preference collections
+ * belonging to a manager. Deadlines are measured in manager ticks and are
+ * hashed into a fixed number of buckets, scheduling and cancelling a timer is
+ * O(1) and each tick only visits the bucket for the current tick, so the cost
+ * of ticking depends on the number of timers which are due rather than on the
+ * number of collections which exist. Timers may be scheduled and cancelled
+ * from any thread, callbacks are invoked from {@link #onTick} unless the timer
+ * requires the game thread, in which case they are invoked from
+ * {@link #runGameThreadTimers} since the wheel may be ticked by the
+ * provider's clock thread.
+ *
+ * @author Adam Mummery-Smith
+ */
+class WebPreferencesScheduler
+{
+    /**
+     * A reusable timer, a timer is either idle or scheduled in exactly one
+     * bucket of a single wheel
+     */
+    static final class Timer
+    {
+        private final Runnable callback;
+
+        /**
+         * True if the callback touches game state and must run on the game
+         * thread
+         */
+        private final boolean gameThread;
+
+        private volatile WebPreferencesScheduler wheel;
+
+        private Timer prev, next;
+
+        private long deadline;
+
+        /**
+         * Number of full revolutions of the wheel remaining before the timer
+         * is due when its bucket is visited
+         */
+        private long remainingRounds;
+
+        Timer(Runnable callback)
+        {
+            this(callback, false);
+        }
+
+        Timer(Runnable callback, boolean gameThread)
+        {
+            this.callback = callback;
+            this.gameThread = gameThread;
+        }
+
+        boolean isScheduled()
+        {
+            return this.wheel != null;
+        }
+    }
+
+    /**
+     * Number of buckets, must be a power of two
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private static final int WHEEL_MASK = WebPreferencesScheduler.WHEEL_SIZE - 1;
+
+    /**
+     * Heads of the bucket lists
+     */
+    private final Timer[] buckets = new Timer[WebPreferencesScheduler.WHEEL_SIZE];
+
+    /**
+     * Current tick
+     */
+    private long tick;
+
+    private int scheduledCount;
+
+    /**
+     * Expired timers waiting for {@link #runGameThreadTimers}
+     */
+    private final Queue<Timer> gameThreadTimers = new ConcurrentLinkedQueue<Timer>();
+
+    /**
+     * Schedule the supplied timer to fire after the specified number of ticks,
+     * if the timer is already scheduled then it is rescheduled
+     *
+     * @param timer Timer to schedule
+     * @param delay Delay in ticks, at least 1
+     */
+    synchronized void schedule(Timer timer, int delay)
+    {
+        this.unlink(timer);
+
+        delay = Math.max(1, delay);
+        timer.deadline = this.tick + delay;
+        timer.remainingRounds = (delay - 1) / WebPreferencesScheduler.WHEEL_SIZE;
+
+        int index = (int)(timer.deadline & WebPreferencesScheduler.WHEEL_MASK);
+        timer.wheel = this;
+        timer.prev = null;
+        timer.next = this.buckets[index];
+        if (timer.next != null)
+        {
+            timer.next.prev = timer;
+        }
+        this.buckets[index] = timer;
+        this.scheduledCount++;
+    }
+
+    /**
+     * Schedule the supplied timer only if it is not already scheduled, so that
+     * an earlier request cannot shorten a longer pending delay
+     *
+     * @return true if the timer was scheduled
+     */
+    synchronized boolean scheduleIfIdle(Timer timer, int delay)
+    {
+        if (timer.wheel != null)
+        {
+            return false;
+        }
+
+        this.schedule(timer, delay);
+        return true;
+    }
+
+    /**
+     * Cancel the supplied timer, does nothing if the timer is not scheduled
+     */
+    synchronized void cancel(Timer timer)
+    {
+        this.unlink(timer);
+    }
+
+    /**
+     * Get the number of ticks until the supplied timer fires, or 0 if the timer
+     * is not scheduled
+     */
+    synchronized int getRemaining(Timer timer)
+    {
+        return timer.wheel == this ? (int)(timer.deadline - this.tick) : 0;
+    }
+
+    /**
+     * Get the number of timers which are currently scheduled
+     */
+    synchronized int getScheduledCount()
+    {
+        return this.scheduledCount;
+    }
+
+    void onTick()
+    {
+        List<Timer> expired = null;
+
+        synchronized (this)
+        {
+            int index = (int)(++this.tick & WebPreferencesScheduler.WHEEL_MASK);
+            for (Timer timer = this.buckets[index], next; timer != null; timer = next)
+            {
+                next = timer.next;
+                if (timer.remainingRounds > 0)
+                {
+                    timer.remainingRounds--;
+                    continue;
+                }
+
+                this.unlink(timer);
+                if (expired == null)
+                {
+                    expired = new ArrayList<Timer>();
+                }
+                expired.add(timer);
+            }
+        }
+
+        if (expired == null)
+        {
+            return;
+        }
+
+        // Callbacks are run outside the lock since they will usually reschedule
+        for (Timer timer : expired)
+        {
+            if (timer.gameThread)
+            {
+                this.gameThreadTimers.add(timer);
+                continue;
+            }
+
+            this.fire(timer);
+        }
+    }
+
+    /**
+     * Run the callbacks of expired timers which require the game thread, must
+     * be called from the game thread once per game tick
+     */
+    void runGameThreadTimers()
+    {
+        for (Timer timer; (timer = this.gameThreadTimers.poll()) != null;)
+        {
+            this.fire(timer);
+        }
+    }
+
+    private void fire(Timer timer)
+    {
+        try
+        {
+            timer.callback.run();
+        }
+        catch (Exception ex)
+        {
+            LiteLoaderLogger.warning(ex, "Error in WebPreferences timer callback: %s", ex.getMessage());
+        }
+    }
+
+    private void unlink(Timer timer)
+    {
+        if (timer.wheel == null)
+        {
+            return;
+        }
+
+        if (timer.wheel != this)
+        {
+            throw new IllegalStateException("Timer is scheduled on a different wheel");
+        }
+
+        if (timer.prev != null)
+        {
+            timer.prev.next = timer.next;
+        }
+        else
+        {
+            this.buckets[(int)(timer.deadline & WebPreferencesScheduler.WHEEL_MASK)] = timer.next;
+        }
+
+        if (timer.next != null)
+        {
+            timer.next.prev = timer.prev;
+        }
+
+        timer.wheel = null;
+        timer.prev = timer.next = null;
+        this.scheduledCount--;
+    }
+}
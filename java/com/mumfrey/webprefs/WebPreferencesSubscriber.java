@@ -0,0 +1,303 @@
+package com.mumfrey.webprefs;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.minecraft.util.Session;
+
+import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
+import com.mumfrey.webprefs.framework.RequestFailureReason;
+import com.mumfrey.webprefs.framework.WebPreferencesProvider;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesPushListener;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesRequest;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesServiceDelegate;
+
+/**
+ * Maintains a long-poll subscription to the public values of a set of UUIDs
+ * on a single host, values pushed by the server are handed straight to the
+ * listener registered for each UUID. At most one subscription request is in
+ * flight at a time, and since it is held open by the server it is submitted
+ * directly to the service rather than occupying a slot in the provider queue.
+ * If the host does not support subscriptions the subscriber stops itself.
+ *
+ * @author Adam Mummery-Smith
+ */
+class WebPreferencesSubscriber
+{
+    /**
+     * Delegate for a single subscription request, each request gets its own
+     * so that a request abandoned by the watchdog cannot report back later
+     */
+    class Subscription implements IWebPreferencesServiceDelegate
+    {
+        @Override
+        public void onReceivedResponse(IWebPreferencesRequest request, IWebPreferencesResponse response)
+        {
+            if (WebPreferencesSubscriber.this.settle(this))
+            {
+                WebPreferencesSubscriber.this.onReceivedResponse(response);
+            }
+        }
+
+        @Override
+        public void onRequestFailed(IWebPreferencesRequest request, Throwable th, RequestFailureReason reason)
+        {
+            if (WebPreferencesSubscriber.this.settle(this))
+            {
+                WebPreferencesSubscriber.this.onRequestFailed(reason);
+            }
+        }
+
+        @Override
+        public String getHostName()
+        {
+            return WebPreferencesSubscriber.this.provider.getHostName();
+        }
+
+        @Override
+        public Session getSession()
+        {
+            return WebPreferencesSubscriber.this.provider.getSession();
+        }
+    }
+
+    private static final int DEFAULT_HOLD_SECONDS = 25;
+
+    /**
+     * Minimum ticks between subscription requests, in case the server
+     * responds without holding the request
+     */
+    private static final int MIN_INTERVAL_TICKS = 20;
+
+    private static final int RETRY_DELAY_TICKS = 20 * 5;
+
+    private static final int MAX_RETRY_DELAY_TICKS = 20 * 60 * 5;
+
+    /**
+     * Time beyond the hold time after which a request which has not reported
+     * back is abandoned
+     */
+    private static final int WATCHDOG_MARGIN_TICKS = 20 * 15;
+
+    private final WebPreferencesProvider provider;
+
+    private final WebPreferencesScheduler scheduler;
+
+    /**
+     * Submits the next subscription request. Whilst a request is in flight the
+     * timer measures the minimum interval, the response only schedules the
+     * next request if the interval has already elapsed.
+     */
+    private final WebPreferencesScheduler.Timer submitTimer = new WebPreferencesScheduler.Timer(new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            WebPreferencesSubscriber.this.submit();
+        }
+    });
+
+    /**
+     * Abandons the request in flight if it neither completes nor fails within
+     * the hold time, so that a lost callback cannot stop the subscription
+     */
+    private final WebPreferencesScheduler.Timer watchdogTimer = new WebPreferencesScheduler.Timer(new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            WebPreferencesSubscriber.this.onWatchdog();
+        }
+    });
+
+    /**
+     * Listeners for subscribed UUIDs
+     */
+    private final Map<String, IWebPreferencesPushListener> listeners = new ConcurrentHashMap<String, IWebPreferencesPushListener>();
+
+    private volatile boolean running;
+
+    private volatile boolean unsupported;
+
+    /**
+     * Request in flight, null if there is none
+     */
+    private final AtomicReference<Subscription> current = new AtomicReference<Subscription>();
+
+    private volatile String cursor;
+
+    private volatile int holdSeconds = WebPreferencesSubscriber.DEFAULT_HOLD_SECONDS;
+
+    private volatile int failureCount;
+
+    WebPreferencesSubscriber(WebPreferencesProvider provider, WebPreferencesScheduler scheduler)
+    {
+        this.provider = provider;
+        this.scheduler = scheduler;
+    }
+
+    void start()
+    {
+        this.running = true;
+        this.scheduler.scheduleIfIdle(this.submitTimer, 1);
+    }
+
+    void stop()
+    {
+        this.running = false;
+        this.scheduler.cancel(this.submitTimer);
+    }
+
+    private boolean isInFlight()
+    {
+        return this.current.get() != null;
+    }
+
+    /**
+     * Claim the outcome of the supplied request, only the first outcome of the
+     * current request is processed
+     */
+    private boolean settle(Subscription subscription)
+    {
+        if (!this.current.compareAndSet(subscription, null))
+        {
+            return false;
+        }
+
+        this.scheduler.cancel(this.watchdogTimer);
+        return true;
+    }
+
+    boolean isRunning()
+    {
+        return this.running && !this.unsupported;
+    }
+
+    /**
+     * Set the maximum time the server should hold each subscription request
+     * open, the transport timeout for the request is extended to match
+     */
+    void setHoldTime(int holdSeconds)
+    {
+        this.holdSeconds = Math.max(0, holdSeconds);
+    }
+
+    int getHoldTime()
+    {
+        return this.holdSeconds;
+    }
+
+    /**
+     * Subscribe to values for the specified UUID, replaces any existing
+     * listener for the UUID. New subscriptions are included from the next
+     * subscription request.
+     */
+    void subscribe(String uuid, IWebPreferencesPushListener listener)
+    {
+        this.listeners.put(uuid, listener);
+        if (this.running && !this.isInFlight())
+        {
+            this.scheduler.scheduleIfIdle(this.submitTimer, 1);
+        }
+    }
+
+    void unsubscribe(String uuid)
+    {
+        this.listeners.remove(uuid);
+    }
+
+    int getSubscriptionCount()
+    {
+        return this.listeners.size();
+    }
+
+    private void submit()
+    {
+        // Nothing to subscribe to, subscribe() wakes us again
+        if (!this.running || this.unsupported || this.isInFlight() || this.listeners.isEmpty())
+        {
+            return;
+        }
+
+        this.scheduler.schedule(this.submitTimer, WebPreferencesSubscriber.MIN_INTERVAL_TICKS);
+        if (!this.provider.isActive())
+        {
+            return;
+        }
+
+        Subscription subscription = new Subscription();
+        this.current.set(subscription);
+        this.scheduler.schedule(this.watchdogTimer, this.holdSeconds * 20 + WebPreferencesSubscriber.WATCHDOG_MARGIN_TICKS);
+
+        try
+        {
+            this.provider.requestSubscription(subscription, new HashSet<String>(this.listeners.keySet()), this.cursor, this.holdSeconds);
+        }
+        catch (Exception ex)
+        {
+            subscription.onRequestFailed(null, ex, RequestFailureReason.UNKNOWN);
+        }
+    }
+
+    private void onWatchdog()
+    {
+        Subscription subscription = this.current.get();
+        if (subscription != null && this.settle(subscription))
+        {
+            LiteLoaderLogger.debug("Subscription request to %s did not complete, abandoning it", this.provider.getHostName());
+            this.onRequestFailed(RequestFailureReason.TIMED_OUT);
+        }
+    }
+
+    private void onReceivedResponse(IWebPreferencesResponse response)
+    {
+        this.cursor = response.getCursor();
+        this.failureCount = 0;
+
+        if (response.hasPushedValues())
+        {
+            for (Entry<String, Map<String, String>> entry : response.getPushedValues().entrySet())
+            {
+                IWebPreferencesPushListener listener = this.listeners.get(entry.getKey());
+                if (listener != null && entry.getValue() != null)
+                {
+                    try
+                    {
+                        listener.onValuesPushed(entry.getKey(), entry.getValue());
+                    }
+                    catch (Exception ex)
+                    {
+                        LiteLoaderLogger.debug(ex, "Error applying pushed values for %s", entry.getKey());
+                    }
+                }
+            }
+        }
+
+        if (this.running)
+        {
+            this.scheduler.scheduleIfIdle(this.submitTimer, 1);
+        }
+    }
+
+    private void onRequestFailed(RequestFailureReason reason)
+    {
+        if (reason == RequestFailureReason.NOT_FOUND)
+        {
+            LiteLoaderLogger.info("Preferences server %s does not support subscriptions, values will only be updated by polling",
+                    this.provider.getHostName());
+            this.unsupported = true;
+        }
+
+        // Back off exponentially, the cursor is kept so that no changes are missed when the subscription resumes
+        int failureCount = this.failureCount++;
+        int retryDelay = WebPreferencesSubscriber.RETRY_DELAY_TICKS << Math.min(failureCount, 8);
+        if (this.running && !this.unsupported)
+        {
+            this.scheduler.schedule(this.submitTimer, Math.min(retryDelay, WebPreferencesSubscriber.MAX_RETRY_DELAY_TICKS));
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.mumfrey.webprefs.framework;
+
+/**
+ * Behaviour of the provider when a request is submitted whilst the task queue
+ * is full. Requests which can be merged into an equivalent queued request are
+ * always accepted regardless of the policy, since merging does not consume
+ * any capacity.
+ */
+public enum OverflowPolicy
+{
+    /**
+     * Reject the new request, the submitter is notified via its capacity
+     * listener once the queue drains
+     */
+    REJECT,
+
+    /**
+     * Drop the oldest queued GET of the same or lower priority to make room for
+     * the new request, the dropped request fails with
+     * {@link RequestFailureReason#DROPPED}. The new request is rejected if
+     * there is no such GET.
+     */
+    DROP_OLDEST_GET,
+
+    /**
+     * Block the submitting thread until space is available or the configured
+     * timeout elapses, the request is rejected if the timeout elapses
+     */
+    BLOCK;
+}
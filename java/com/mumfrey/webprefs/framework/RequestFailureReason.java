@@ -9,7 +9,10 @@ public enum RequestFailureReason
     UNAUTHORISED(5),
     THROTTLED(2),
     UUID_MISMATCH(10),
-    BAD_DATA(1);
+    BAD_DATA(1),
+    DROPPED(0),
+    TIMED_OUT(1),
+    NOT_FOUND(1);
 
     private final int severity;
 
@@ -0,0 +1,25 @@
+package com.mumfrey.webprefs.framework;
+
+/**
+ * Priority of a request in the provider queue. Requests are dispatched in
+ * priority order, however waiting requests are aged so that lower priority
+ * requests are not starved by a constant stream of higher priority ones.
+ */
+public enum RequestPriority
+{
+    /**
+     * Reads and writes for the local player
+     */
+    LOCAL,
+    
+    /**
+     * Reads for players whose preferences are actively being consumed, eg.
+     * players who are currently being rendered
+     */
+    VISIBLE,
+    
+    /**
+     * Background refresh of preferences nobody is currently using
+     */
+    BACKGROUND;
+}
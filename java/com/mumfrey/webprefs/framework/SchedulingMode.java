@@ -0,0 +1,23 @@
+package com.mumfrey.webprefs.framework;
+
+/**
+ * Source of time for a provider and the preference collections which use it.
+ * Timer delays are always expressed in ticks, this determines what advances
+ * them.
+ */
+public enum SchedulingMode
+{
+    /**
+     * Timers advance with the game clock, so they stop whilst the game is
+     * paused and stretch whilst the game is lagging
+     */
+    TICK,
+
+    /**
+     * Timers advance at 20 ticks per second of real time on the provider's
+     * own clock thread, regardless of what the game loop is doing. Requests
+     * which have not completed within the request timeout are failed with
+     * {@link RequestFailureReason#TIMED_OUT} by the provider.
+     */
+    WALL_CLOCK;
+}
@@ -0,0 +1,202 @@
+package com.mumfrey.webprefs.framework;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-host circuit breaker used by the provider. Failures accumulate in a
+ * score which decays over time, so that only a sustained run of failures
+ * opens the circuit. Whilst open no requests are dispatched, once the backoff
+ * period has elapsed the circuit becomes half-open and a single probe request
+ * is allowed through: if it succeeds the circuit closes, otherwise it opens
+ * again for twice as long. Backoff periods are jittered so that many clients
+ * which lost the same host do not all retry at the same moment.
+ *
+ * @author Adam Mummery-Smith
+ */
+class WebPreferencesCircuitBreaker
+{
+    enum State
+    {
+        /**
+         * Requests flow normally
+         */
+        CLOSED,
+
+        /**
+         * Requests are held until the backoff period elapses
+         */
+        OPEN,
+
+        /**
+         * A single probe request is allowed through to test the host
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Time for the failure score to decay to half its value
+     */
+    private static final long FAILURE_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    /**
+     * Time after which a probe which has not reported back is abandoned and
+     * another probe is allowed, in case the probe never reached the host
+     */
+    private static final long PROBE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Score at which the circuit opens
+     */
+    private final int threshold;
+
+    private State state = State.CLOSED;
+
+    private double failureScore;
+
+    private long lastFailure = System.nanoTime();
+
+    /**
+     * Number of times the circuit has opened without an intervening success,
+     * used to scale the backoff period
+     */
+    private int openCount;
+
+    private long openUntil;
+
+    private boolean probeInFlight;
+
+    private long probeStarted;
+
+    WebPreferencesCircuitBreaker(int threshold)
+    {
+        this.threshold = Math.max(1, threshold);
+    }
+
+    synchronized State getState()
+    {
+        this.updateState(System.nanoTime());
+        return this.state;
+    }
+
+    /**
+     * Get whether requests can currently be accepted, returns false only
+     * whilst the circuit is open and the backoff period has not elapsed
+     */
+    synchronized boolean isAvailable()
+    {
+        return this.getState() != State.OPEN;
+    }
+
+    /**
+     * Get the time in milliseconds until the circuit becomes half-open, or 0
+     * if the circuit is not open
+     */
+    synchronized long getRetryDelay()
+    {
+        return this.getState() == State.OPEN ? TimeUnit.NANOSECONDS.toMillis(this.openUntil - System.nanoTime()) : 0L;
+    }
+
+    /**
+     * Wait until a request may be dispatched. Whilst the circuit is open this
+     * blocks until the backoff period elapses, and whilst half-open it blocks
+     * until the outstanding probe completes.
+     */
+    synchronized void acquire() throws InterruptedException
+    {
+        for (;;)
+        {
+            long now = System.nanoTime();
+            this.updateState(now);
+
+            if (this.state == State.CLOSED)
+            {
+                return;
+            }
+
+            if (this.state == State.HALF_OPEN && (!this.probeInFlight || now - this.probeStarted >= WebPreferencesCircuitBreaker.PROBE_TIMEOUT_NANOS))
+            {
+                this.probeInFlight = true;
+                this.probeStarted = now;
+                return;
+            }
+
+            long until = this.state == State.OPEN ? this.openUntil : this.probeStarted + WebPreferencesCircuitBreaker.PROBE_TIMEOUT_NANOS;
+            TimeUnit.NANOSECONDS.timedWait(this, until - now);
+        }
+    }
+
+    /**
+     * Record a successful request, closes the circuit
+     */
+    synchronized void recordSuccess()
+    {
+        if (this.state != State.CLOSED)
+        {
+            this.state = State.CLOSED;
+            this.notifyAll();
+        }
+
+        this.failureScore = 0;
+        this.openCount = 0;
+        this.probeInFlight = false;
+    }
+
+    /**
+     * Record a failed request
+     *
+     * @param severity severity of the failure
+     * @return true if this failure opened the circuit
+     */
+    synchronized boolean recordFailure(int severity)
+    {
+        long now = System.nanoTime();
+        this.updateState(now);
+
+        this.failureScore = this.getFailureScore(now) + Math.max(1, severity);
+        this.lastFailure = now;
+
+        if (this.state == State.HALF_OPEN || (this.state == State.CLOSED && this.failureScore >= this.threshold))
+        {
+            this.open(now);
+            return true;
+        }
+
+        return false;
+    }
+
+    private void open(long now)
+    {
+        long backoff = Math.min(WebPreferencesCircuitBreaker.MAX_BACKOFF_NANOS,
+                WebPreferencesCircuitBreaker.MIN_BACKOFF_NANOS << Math.min(this.openCount, 16));
+
+        // Equal jitter, wait at least half of the backoff period and a random proportion of the remainder
+        backoff = backoff / 2 + (long)(ThreadLocalRandom.current().nextDouble() * (backoff / 2));
+
+        this.state = State.OPEN;
+        this.openUntil = now + backoff;
+        this.openCount++;
+        this.probeInFlight = false;
+        this.notifyAll();
+    }
+
+    private void updateState(long now)
+    {
+        if (this.state == State.OPEN && now - this.openUntil >= 0)
+        {
+            this.state = State.HALF_OPEN;
+            this.failureScore = 0;
+            this.notifyAll();
+        }
+    }
+
+    private double getFailureScore(long now)
+    {
+        double halfLives = (double)(now - this.lastFailure) / WebPreferencesCircuitBreaker.FAILURE_HALF_LIFE_NANOS;
+        return this.failureScore * Math.pow(0.5, halfLives);
+    }
+}
@@ -0,0 +1,867 @@
+package com.mumfrey.webprefs.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.google.common.base.Charsets;
+import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
+
+/**
+ * Minimal non-blocking HTTP/1.1 client used by the asynchronous service
+ * transport. All socket IO for every request happens on a single selector
+ * thread and connections are kept alive and reused for subsequent requests to
+ * the same host, so many requests can be in flight without tying up a thread
+ * per request.
+ *
+ * <p>Only plain HTTP is supported, either direct or via an HTTP proxy. Callers
+ * should check {@link #supports} and fall back to a blocking connection
+ * otherwise.</p>
+ *
+ * @author Adam Mummery-Smith
+ */
+class WebPreferencesHttpClient implements Runnable
+{
+    /**
+     * Response received from the server
+     */
+    static final class HttpResponse
+    {
+        private final int status;
+
+        private final String message;
+
+        private final Map<String, String> headers;
+
+        private final String body;
+
+        HttpResponse(int status, String message, Map<String, String> headers, String body)
+        {
+            this.status = status;
+            this.message = message;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getStatus()
+        {
+            return this.status;
+        }
+
+        public String getMessage()
+        {
+            return this.message;
+        }
+
+        public String getHeader(String name)
+        {
+            return this.headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public String getBody()
+        {
+            return this.body;
+        }
+    }
+
+    /**
+     * Incremental parser for a single HTTP response
+     */
+    static final class ResponseParser
+    {
+        enum State
+        {
+            HEADERS,
+            BODY_LENGTH,
+            BODY_EOF,
+            CHUNK_SIZE,
+            CHUNK_DATA,
+            CHUNK_DATA_END,
+            CHUNK_TRAILER,
+            DONE
+        }
+
+        private State state = State.HEADERS;
+
+        private byte[] buffer = new byte[4096];
+
+        private int start, end;
+
+        private int status;
+
+        private String message = "";
+
+        private boolean keepAlive;
+
+        private long remaining;
+
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        boolean hasStarted()
+        {
+            return this.end > 0 || this.state != State.HEADERS;
+        }
+
+        boolean isKeepAlive()
+        {
+            return this.keepAlive;
+        }
+
+        /**
+         * Get whether data was received after the end of the response, in
+         * which case the connection is out of step and cannot be reused
+         */
+        boolean hasTrailingData()
+        {
+            return this.state == State.DONE && this.end > this.start;
+        }
+
+        /**
+         * Feed received data to the parser
+         *
+         * @return true if the response is complete
+         */
+        boolean feed(ByteBuffer data) throws IOException
+        {
+            int length = data.remaining();
+            if (this.end + length > this.buffer.length)
+            {
+                System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+                this.end -= this.start;
+                this.start = 0;
+
+                if (this.end + length > this.buffer.length)
+                {
+                    if (this.end + length > WebPreferencesHttpClient.MAX_RESPONSE_BYTES)
+                    {
+                        throw new IOException("Response exceeds " + WebPreferencesHttpClient.MAX_RESPONSE_BYTES + " bytes");
+                    }
+
+                    byte[] newBuffer = new byte[Math.max(this.buffer.length * 2, this.end + length)];
+                    System.arraycopy(this.buffer, 0, newBuffer, 0, this.end);
+                    this.buffer = newBuffer;
+                }
+            }
+
+            data.get(this.buffer, this.end, length);
+            this.end += length;
+            return this.parse();
+        }
+
+        /**
+         * Called when the server closes the connection
+         *
+         * @return true if the response is complete
+         */
+        boolean onEndOfStream()
+        {
+            if (this.state == State.BODY_EOF)
+            {
+                this.state = State.DONE;
+            }
+
+            return this.state == State.DONE;
+        }
+
+        HttpResponse toResponse()
+        {
+            return new HttpResponse(this.status, this.message, this.headers, new String(this.body.toByteArray(), Charsets.UTF_8));
+        }
+
+        private boolean parse() throws IOException
+        {
+            while (true)
+            {
+                switch (this.state)
+                {
+                    case HEADERS:
+                        int headerEnd = this.indexOf("\r\n\r\n");
+                        if (headerEnd < 0) return false;
+                        this.parseHeaders(new String(this.buffer, this.start, headerEnd - this.start, Charsets.ISO_8859_1));
+                        this.start = headerEnd + 4;
+                        break;
+
+                    case BODY_LENGTH:
+                        int length = (int)Math.min(this.end - this.start, this.remaining);
+                        this.consume(length);
+                        this.remaining -= length;
+                        if (this.remaining > 0) return false;
+                        this.state = State.DONE;
+                        break;
+
+                    case BODY_EOF:
+                        this.consume(this.end - this.start);
+                        return false;
+
+                    case CHUNK_SIZE:
+                        int sizeEnd = this.indexOf("\r\n");
+                        if (sizeEnd < 0) return false;
+                        String size = new String(this.buffer, this.start, sizeEnd - this.start, Charsets.ISO_8859_1);
+                        this.start = sizeEnd + 2;
+                        int extension = size.indexOf(';');
+                        try
+                        {
+                            this.remaining = Long.parseLong((extension < 0 ? size : size.substring(0, extension)).trim(), 16);
+                        }
+                        catch (NumberFormatException ex)
+                        {
+                            throw new IOException("Invalid chunk size [" + size + "]");
+                        }
+                        this.state = this.remaining > 0 ? State.CHUNK_DATA : State.CHUNK_TRAILER;
+                        break;
+
+                    case CHUNK_DATA:
+                        int chunkLength = (int)Math.min(this.end - this.start, this.remaining);
+                        this.consume(chunkLength);
+                        this.remaining -= chunkLength;
+                        if (this.remaining > 0) return false;
+                        this.state = State.CHUNK_DATA_END;
+                        break;
+
+                    case CHUNK_DATA_END:
+                        if (this.end - this.start < 2) return false;
+                        this.start += 2;
+                        this.state = State.CHUNK_SIZE;
+                        break;
+
+                    case CHUNK_TRAILER:
+                        int trailerEnd = this.indexOf("\r\n");
+                        if (trailerEnd < 0) return false;
+                        if (trailerEnd == this.start) this.state = State.DONE;
+                        this.start = trailerEnd + 2;
+                        break;
+
+                    default:
+                        return true;
+                }
+            }
+        }
+
+        private void parseHeaders(String text) throws IOException
+        {
+            String[] lines = text.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/"))
+            {
+                throw new IOException("Invalid status line [" + lines[0] + "]");
+            }
+
+            try
+            {
+                this.status = Integer.parseInt(statusLine[1]);
+            }
+            catch (NumberFormatException ex)
+            {
+                throw new IOException("Invalid status line [" + lines[0] + "]");
+            }
+
+            this.message = statusLine.length > 2 ? statusLine[2] : "";
+            this.headers.clear();
+
+            for (int i = 1; i < lines.length; i++)
+            {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0)
+                {
+                    this.headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            String connection = this.headers.get("connection");
+            this.keepAlive = "HTTP/1.1".equals(statusLine[0])
+                    ? !"close".equalsIgnoreCase(connection)
+                    : "keep-alive".equalsIgnoreCase(connection);
+
+            String transferEncoding = this.headers.get("transfer-encoding");
+            String contentLength = this.headers.get("content-length");
+
+            if (this.status / 100 == 1)
+            {
+                this.state = State.HEADERS;
+            }
+            else if (this.status == 204 || this.status == 304)
+            {
+                this.state = State.DONE;
+            }
+            else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked"))
+            {
+                this.state = State.CHUNK_SIZE;
+            }
+            else if (contentLength != null)
+            {
+                try
+                {
+                    this.remaining = Long.parseLong(contentLength);
+                }
+                catch (NumberFormatException ex)
+                {
+                    throw new IOException("Invalid content length [" + contentLength + "]");
+                }
+                this.state = this.remaining > 0 ? State.BODY_LENGTH : State.DONE;
+            }
+            else
+            {
+                this.keepAlive = false;
+                this.state = State.BODY_EOF;
+            }
+        }
+
+        private void consume(int length) throws IOException
+        {
+            if (this.body.size() + length > WebPreferencesHttpClient.MAX_RESPONSE_BYTES)
+            {
+                throw new IOException("Response exceeds " + WebPreferencesHttpClient.MAX_RESPONSE_BYTES + " bytes");
+            }
+
+            this.body.write(this.buffer, this.start, length);
+            this.start += length;
+        }
+
+        private int indexOf(String delimiter)
+        {
+            outer: for (int pos = this.start; pos <= this.end - delimiter.length(); pos++)
+            {
+                for (int i = 0; i < delimiter.length(); i++)
+                {
+                    if (this.buffer[pos + i] != delimiter.charAt(i)) continue outer;
+                }
+                return pos;
+            }
+
+            return -1;
+        }
+    }
+
+    /**
+     * Connection state for a single host (or proxy)
+     */
+    static final class Host
+    {
+        final Deque<SocketChannel> idle = new ArrayDeque<SocketChannel>();
+
+        final Map<SocketChannel, Long> idleSince = new HashMap<SocketChannel, Long>();
+
+        final Deque<Exchange> waiting = new ArrayDeque<Exchange>();
+
+        int open;
+    }
+
+    /**
+     * A single request/response exchange
+     */
+    static final class Exchange
+    {
+        final String hostKey;
+
+        final InetSocketAddress address;
+
+        final ByteBuffer request;
+
+        final long deadline;
+
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<HttpResponse>();
+
+        SocketChannel channel;
+
+        ResponseParser parser = new ResponseParser();
+
+        boolean reused, retried;
+
+        Exchange(String hostKey, InetSocketAddress address, byte[] request, long deadline)
+        {
+            this.hostKey = hostKey;
+            this.address = address;
+            this.request = ByteBuffer.wrap(request);
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Resolved address of a host, cached so that DNS is not queried for
+     * every request
+     */
+    static final class ResolvedAddress
+    {
+        final InetSocketAddress address;
+
+        final long expires;
+
+        ResolvedAddress(InetSocketAddress address, long expires)
+        {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+
+    private static final int MAX_CONNECTIONS_PER_HOST = 8;
+
+    /**
+     * Largest response we will accept, the exchange fails if the server sends
+     * more than this
+     */
+    static final int MAX_RESPONSE_BYTES = 4 * 1024 * 1024;
+
+    private static final long ADDRESS_TTL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final long SELECT_TIMEOUT_MSEC = 250;
+
+    private final Proxy proxy;
+
+    private final int timeout;
+
+    private final Selector selector;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(16384);
+
+    private final Queue<Exchange> submitted = new ConcurrentLinkedQueue<Exchange>();
+
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+    private final Set<Exchange> active = new HashSet<Exchange>();
+
+    private final Map<String, ResolvedAddress> addresses = new ConcurrentHashMap<String, ResolvedAddress>();
+
+    WebPreferencesHttpClient(Proxy proxy, int timeout) throws IOException
+    {
+        this.proxy = proxy != null && proxy.type() == Proxy.Type.HTTP ? proxy : Proxy.NO_PROXY;
+        this.timeout = timeout;
+        this.selector = Selector.open();
+
+        Thread thread = new Thread(this, "WebPreferences HTTP client IO thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get whether the async client is able to service requests to the
+     * specified URI using the specified proxy
+     */
+    static boolean supports(Proxy proxy, URI uri)
+    {
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null)
+        {
+            return false;
+        }
+
+        return proxy == null || proxy.type() == Proxy.Type.DIRECT
+                || (proxy.type() == Proxy.Type.HTTP && proxy.address() instanceof InetSocketAddress);
+    }
+
+    /**
+     * Submit a POST request, the returned future is completed on the client IO
+     * thread so consumers should not perform any lengthy work in dependent
+     * stages without supplying an executor.
+     */
+    CompletableFuture<HttpResponse> post(URI uri, byte[] body, String contentType)
+    {
+        return this.post(uri, body, contentType, 0);
+    }
+
+    /**
+     * Submit a POST request with a timeout other than the client default
+     *
+     * @param timeout timeout in milliseconds, or 0 to use the client default
+     */
+    CompletableFuture<HttpResponse> post(URI uri, byte[] body, String contentType, int timeout)
+    {
+        InetSocketAddress address;
+        String target;
+
+        if (this.proxy.type() == Proxy.Type.HTTP)
+        {
+            address = (InetSocketAddress)this.proxy.address();
+            target = uri.toString();
+        }
+        else
+        {
+            address = InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort() < 0 ? 80 : uri.getPort());
+            String path = uri.getRawPath();
+            target = (path == null || path.isEmpty() ? "/" : path) + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("POST ").append(target).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(uri.getHost()).append(uri.getPort() < 0 ? "" : ":" + uri.getPort()).append("\r\n");
+        head.append("Content-Type: ").append(contentType).append("\r\n");
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        head.append("Connection: keep-alive\r\n\r\n");
+
+        byte[] headBytes = head.toString().getBytes(Charsets.ISO_8859_1);
+        byte[] request = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+        System.arraycopy(body, 0, request, headBytes.length, body.length);
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout > 0 ? timeout : this.timeout);
+        final byte[] data = request;
+
+        InetSocketAddress resolved = this.getResolvedAddress(address);
+        if (resolved != null)
+        {
+            return this.submit(resolved, data, deadline);
+        }
+
+        // Resolve on a pool thread rather than blocking the caller or the IO thread
+        return this.resolve(address).thenCompose(new Function<InetSocketAddress, CompletableFuture<HttpResponse>>()
+        {
+            @Override
+            public CompletableFuture<HttpResponse> apply(InetSocketAddress resolved)
+            {
+                return WebPreferencesHttpClient.this.submit(resolved, data, deadline);
+            }
+        });
+    }
+
+    private CompletableFuture<HttpResponse> submit(InetSocketAddress address, byte[] request, long deadline)
+    {
+        String hostKey = address.getAddress().getHostAddress() + ":" + address.getPort();
+        Exchange exchange = new Exchange(hostKey, address, request, deadline);
+        this.submitted.add(exchange);
+        this.selector.wakeup();
+        return exchange.future;
+    }
+
+    /**
+     * Get the supplied address if it is resolved, or the cached resolution
+     * of it if there is one which has not expired
+     */
+    private InetSocketAddress getResolvedAddress(InetSocketAddress address)
+    {
+        if (!address.isUnresolved())
+        {
+            return address;
+        }
+
+        ResolvedAddress cached = this.addresses.get(address.getHostString() + ":" + address.getPort());
+        return cached != null && System.nanoTime() - cached.expires < 0 ? cached.address : null;
+    }
+
+    private CompletableFuture<InetSocketAddress> resolve(final InetSocketAddress address)
+    {
+        final CompletableFuture<InetSocketAddress> future = new CompletableFuture<InetSocketAddress>();
+        CompletableFuture.runAsync(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    InetSocketAddress resolved = new InetSocketAddress(address.getHostString(), address.getPort());
+                    if (resolved.isUnresolved())
+                    {
+                        future.completeExceptionally(new UnknownHostException(address.getHostString()));
+                        return;
+                    }
+
+                    WebPreferencesHttpClient.this.addresses.put(address.getHostString() + ":" + address.getPort(),
+                            new ResolvedAddress(resolved, System.nanoTime() + WebPreferencesHttpClient.ADDRESS_TTL_NANOS));
+                    future.complete(resolved);
+                }
+                catch (Exception ex)
+                {
+                    future.completeExceptionally(ex);
+                }
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                this.selector.select(WebPreferencesHttpClient.SELECT_TIMEOUT_MSEC);
+
+                for (Exchange exchange; (exchange = this.submitted.poll()) != null;)
+                {
+                    this.start(exchange);
+                }
+
+                for (Iterator<SelectionKey> iter = this.selector.selectedKeys().iterator(); iter.hasNext();)
+                {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    this.handle(key);
+                }
+
+                this.expire(System.nanoTime());
+            }
+            catch (Throwable th)
+            {
+                LiteLoaderLogger.warning(th, "WebPreferences HTTP client encountered an error: %s", th.getMessage());
+            }
+        }
+    }
+
+    private Host getHost(String hostKey)
+    {
+        Host host = this.hosts.get(hostKey);
+        if (host == null)
+        {
+            host = new Host();
+            this.hosts.put(hostKey, host);
+        }
+        return host;
+    }
+
+    private void start(Exchange exchange)
+    {
+        Host host = this.getHost(exchange.hostKey);
+
+        for (SocketChannel channel; (channel = host.idle.pollFirst()) != null;)
+        {
+            host.idleSince.remove(channel);
+            SelectionKey key = channel.keyFor(this.selector);
+            if (!channel.isOpen() || key == null || !key.isValid())
+            {
+                this.close(host, channel);
+                continue;
+            }
+
+            exchange.channel = channel;
+            exchange.reused = true;
+            key.attach(exchange);
+            key.interestOps(SelectionKey.OP_WRITE);
+            this.active.add(exchange);
+            return;
+        }
+
+        if (host.open >= WebPreferencesHttpClient.MAX_CONNECTIONS_PER_HOST)
+        {
+            host.waiting.add(exchange);
+            return;
+        }
+
+        SocketChannel channel = null;
+        try
+        {
+            channel = SocketChannel.open();
+            host.open++;
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(exchange.address);
+            channel.register(this.selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, exchange);
+            exchange.channel = channel;
+            exchange.reused = false;
+            this.active.add(exchange);
+        }
+        catch (IOException ex)
+        {
+            if (channel != null)
+            {
+                this.close(host, channel);
+            }
+
+            exchange.future.completeExceptionally(ex);
+        }
+    }
+
+    private void handle(SelectionKey key)
+    {
+        Object attachment = key.attachment();
+        SocketChannel channel = (SocketChannel)key.channel();
+
+        if (attachment instanceof Host)
+        {
+            // Idle connection was closed by the server (or sent unsolicited data)
+            Host host = (Host)attachment;
+            host.idle.remove(channel);
+            host.idleSince.remove(channel);
+            this.close(host, channel);
+            return;
+        }
+
+        Exchange exchange = (Exchange)attachment;
+        if (exchange == null || !key.isValid())
+        {
+            return;
+        }
+
+        try
+        {
+            if (key.isConnectable() && channel.finishConnect())
+            {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+
+            if (key.isValid() && key.isWritable())
+            {
+                channel.write(exchange.request);
+                if (!exchange.request.hasRemaining())
+                {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+
+            if (key.isValid() && key.isReadable())
+            {
+                this.readBuffer.clear();
+                int read = channel.read(this.readBuffer);
+                this.readBuffer.flip();
+
+                if (read < 0)
+                {
+                    if (exchange.parser.onEndOfStream())
+                    {
+                        this.complete(exchange, false);
+                        return;
+                    }
+
+                    throw new IOException("Connection closed by server before response was complete");
+                }
+
+                if (exchange.parser.feed(this.readBuffer))
+                {
+                    this.complete(exchange, exchange.parser.isKeepAlive());
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            this.fail(exchange, ex);
+        }
+    }
+
+    private void complete(Exchange exchange, boolean keepAlive)
+    {
+        Host host = this.getHost(exchange.hostKey);
+        this.active.remove(exchange);
+
+        // Data past the end of the response means we cannot tell where the next response would start
+        SelectionKey key = exchange.channel.keyFor(this.selector);
+        if (keepAlive && !exchange.parser.hasTrailingData() && exchange.channel.isOpen() && key != null && key.isValid())
+        {
+            key.attach(host);
+            key.interestOps(SelectionKey.OP_READ);
+            host.idle.addFirst(exchange.channel);
+            host.idleSince.put(exchange.channel, System.nanoTime());
+        }
+        else
+        {
+            this.close(host, exchange.channel);
+        }
+
+        exchange.future.complete(exchange.parser.toResponse());
+        this.startWaiting(host);
+    }
+
+    private void fail(Exchange exchange, IOException ex)
+    {
+        Host host = this.getHost(exchange.hostKey);
+        this.active.remove(exchange);
+        this.close(host, exchange.channel);
+
+        // A kept-alive connection may have been closed by the server before we used it, retry once on a new connection
+        if (exchange.reused && !exchange.retried && !exchange.parser.hasStarted())
+        {
+            exchange.retried = true;
+            exchange.request.rewind();
+            exchange.parser = new ResponseParser();
+            this.start(exchange);
+        }
+        else
+        {
+            exchange.future.completeExceptionally(ex);
+        }
+
+        this.startWaiting(host);
+    }
+
+    private void startWaiting(Host host)
+    {
+        while (!host.waiting.isEmpty() && (!host.idle.isEmpty() || host.open < WebPreferencesHttpClient.MAX_CONNECTIONS_PER_HOST))
+        {
+            this.start(host.waiting.pollFirst());
+        }
+    }
+
+    private void expire(long now)
+    {
+        if (!this.active.isEmpty())
+        {
+            for (Exchange exchange : new ArrayList<Exchange>(this.active))
+            {
+                if (now - exchange.deadline > 0)
+                {
+                    exchange.retried = true;
+                    this.fail(exchange, new SocketTimeoutException("Request timed out"));
+                }
+            }
+        }
+
+        for (Host host : this.hosts.values())
+        {
+            for (Iterator<Exchange> iter = host.waiting.iterator(); iter.hasNext();)
+            {
+                Exchange exchange = iter.next();
+                if (now - exchange.deadline > 0)
+                {
+                    iter.remove();
+                    exchange.future.completeExceptionally(new SocketTimeoutException("Timed out waiting for a connection"));
+                }
+            }
+
+            for (Iterator<SocketChannel> iter = host.idle.iterator(); iter.hasNext();)
+            {
+                SocketChannel channel = iter.next();
+                Long since = host.idleSince.get(channel);
+                if (since == null || now - since.longValue() > WebPreferencesHttpClient.IDLE_TIMEOUT_NANOS)
+                {
+                    iter.remove();
+                    host.idleSince.remove(channel);
+                    this.close(host, channel);
+                }
+            }
+        }
+    }
+
+    private void close(Host host, SocketChannel channel)
+    {
+        if (channel == null || !channel.isOpen())
+        {
+            return;
+        }
+
+        SelectionKey key = channel.keyFor(this.selector);
+        if (key != null)
+        {
+            key.cancel();
+        }
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ex) {}
+
+        host.open--;
+    }
+}
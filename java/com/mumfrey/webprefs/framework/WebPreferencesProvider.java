@@ -1,21 +1,70 @@
 package com.mumfrey.webprefs.framework;
 
 import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import net.minecraft.util.Session;
 
+import com.google.common.base.Predicate;
 import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesCapacityListener;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesChangeListener;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesClient;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesProvider;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesService;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesServiceDelegate;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesServiceMonitor;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesTransport;
 
 public class WebPreferencesProvider extends Thread implements IWebPreferencesProvider, IWebPreferencesServiceMonitor
 {
+    /**
+     * Default maximum number of GET tasks to coalesce into a single batch
+     */
+    private static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * Time to hold requests for if the server throttles a request without
+     * specifying a Retry-After delay
+     */
+    private static final int DEFAULT_THROTTLE_SECONDS = 10;
+
+    private static final int QUEUE_CAPACITY = 2048;
+
+    /**
+     * Length of a tick when running on the wall clock
+     */
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Maximum number of ticks to catch up in one go if the clock thread falls
+     * behind, for example because the machine was suspended
+     */
+    private static final int MAX_CATCH_UP_TICKS = 20 * 5;
+
+    /**
+     * Number of ticks between checks for tasks which have passed their
+     * deadline
+     */
+    private static final int DEADLINE_CHECK_TICKS = 5;
+
+    private static final long DEFAULT_REQUEST_TIMEOUT_SECONDS = 30;
+
     private final IWebPreferencesService service;
 
     private final String hostName;
@@ -24,34 +73,493 @@ public class WebPreferencesProvider extends Thread implements IWebPreferencesPro
 
     private final int failureThreshold;
 
-    private int failureCount = 0;
+    /**
+     * Holds dispatch whilst the host is failing, replaces permanent shutdown
+     * so that the provider recovers once the host is available again
+     */
+    private final WebPreferencesCircuitBreaker circuitBreaker;
+
+    private volatile int maxBatchSize = WebPreferencesProvider.DEFAULT_BATCH_SIZE;
+
+    /**
+     * Worker pool, when null tasks are processed on the provider thread
+     */
+    private volatile WebPreferencesWorkerPool workerPool;
+
+    private final Object workerPoolLock = new Object();
+
+    /**
+     * Set once the first task is taken from the queue, after which the worker
+     * pool can no longer be replaced
+     */
+    private boolean dispatching;
 
-    private volatile boolean active = true;
+    private final WebPreferencesTaskQueue tasks;
 
-    private final BlockingQueue<WebPreferencesServiceTask> tasks = new LinkedBlockingQueue<WebPreferencesServiceTask>(2048);
+    /**
+     * Tasks which have been taken from the queue but have not completed yet
+     */
+    private final Set<WebPreferencesServiceTask> activeTasks
+            = Collections.newSetFromMap(new ConcurrentHashMap<WebPreferencesServiceTask, Boolean>());
+
+    /**
+     * Paces dispatch to the rate advertised by the server
+     */
+    private final WebPreferencesRateLimiter rateLimiter = new WebPreferencesRateLimiter();
+
+    private final List<Runnable> tickListeners = new CopyOnWriteArrayList<Runnable>();
+
+    private volatile SchedulingMode schedulingMode = SchedulingMode.TICK;
+
+    private volatile long requestTimeoutNanos = TimeUnit.SECONDS.toNanos(WebPreferencesProvider.DEFAULT_REQUEST_TIMEOUT_SECONDS);
+
+    /**
+     * Drives tick listeners and request deadlines in
+     * {@link SchedulingMode#WALL_CLOCK} mode, null in tick mode
+     */
+    private ScheduledExecutorService clock;
+
+    private final Object clockLock = new Object();
 
     public WebPreferencesProvider(Proxy proxy, Session session, String hostName, int maxFailedRequestsCount)
     {
-        this.service = new WebPreferencesService(proxy, session);
+        this(new WebPreferencesTransportHttpAsync(proxy), session, hostName, maxFailedRequestsCount);
+    }
+
+    public WebPreferencesProvider(IWebPreferencesTransport transport, Session session, String hostName, int maxFailedRequestsCount)
+    {
+        this.service = new WebPreferencesService(transport, session);
         this.service.addMonitor(this);
 
         this.hostName = hostName;
         this.session = session;
         this.failureThreshold = maxFailedRequestsCount;
+        this.circuitBreaker = new WebPreferencesCircuitBreaker(maxFailedRequestsCount);
+        this.tasks = new WebPreferencesTaskQueue(WebPreferencesProvider.QUEUE_CAPACITY, new WebPreferencesTaskQueue.Listener()
+        {
+            @Override
+            public void onTaskDropped(final WebPreferencesServiceTask task)
+            {
+                // The submitter may be holding its own lock, so notify the dropped task's client asynchronously
+                CompletableFuture.runAsync(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        task.onRequestFailed(task.getRequest(), null, RequestFailureReason.DROPPED);
+                    }
+                });
+            }
+        });
 
         this.setName("WebPreferencesProvider daemon thread [" + hostName + "]");
         this.setDaemon(true);
         this.start();
     }
 
+    /**
+     * Returns false whilst the circuit breaker for this host is open
+     */
     @Override
     public boolean isActive()
     {
-        return this.active;
+        return this.circuitBreaker.isAvailable();
+    }
+
+    /**
+     * Get the time in milliseconds until requests to this host will be retried
+     * if the circuit breaker is open, or 0 if the host is available
+     */
+    public long getRetryDelay()
+    {
+        return this.circuitBreaker.getRetryDelay();
+    }
+
+    public int getMaxBatchSize()
+    {
+        return this.maxBatchSize;
+    }
+
+    /**
+     * Set the maximum number of queued GET tasks which will be coalesced into a
+     * single multi-UUID request, values less than 2 disable batching
+     */
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+    }
+    
+    /**
+     * Configure the number of concurrent workers for this provider. With a
+     * single worker all requests are processed in sequence on the provider
+     * thread, with more than one worker requests for different UUIDs are
+     * processed concurrently whilst requests for the same UUID are still
+     * processed in order. Must be configured before any requests are
+     * processed.
+     *
+     * @param workers number of worker threads
+     * @param maxInFlight maximum number of requests in flight at once
+     * @throws IllegalStateException if the provider has already processed
+     *      requests
+     */
+    public void setConcurrency(int workers, int maxInFlight)
+    {
+        this.setWorkerPool(workers > 1 ? new WebPreferencesWorkerPool(this, this.hostName, workers, maxInFlight) : null);
+    }
+
+    /**
+     * Configure this provider to submit requests asynchronously using the
+     * non-blocking service transport. Requests are no longer processed on the
+     * provider thread, instead up to <tt>maxInFlight</tt> requests are in
+     * flight at once whilst requests for the same UUID are still processed in
+     * order. Must be configured before any requests are processed.
+     *
+     * @param maxInFlight maximum number of requests in flight at once
+     * @throws IllegalStateException if the provider has already processed
+     *      requests
+     */
+    public void setAsynchronous(int maxInFlight)
+    {
+        this.setWorkerPool(new WebPreferencesWorkerPool(this, this.hostName, 0, maxInFlight));
+    }
+
+    /**
+     * Replace the worker pool, only permitted before the first task is taken
+     * from the queue since the tasks and busy UUIDs of a pool cannot be handed
+     * over to another
+     */
+    private void setWorkerPool(WebPreferencesWorkerPool workerPool)
+    {
+        WebPreferencesWorkerPool oldPool;
+        synchronized (this.workerPoolLock)
+        {
+            if (this.dispatching)
+            {
+                if (workerPool != null)
+                {
+                    workerPool.shutdown();
+                }
+                throw new IllegalStateException("The concurrency of WebPreferencesProvider [" + this.hostName
+                        + "] cannot be changed once it has processed requests");
+            }
+
+            oldPool = this.workerPool;
+            this.workerPool = workerPool;
+        }
+
+        if (oldPool != null)
+        {
+            oldPool.shutdown();
+        }
+    }
+
+    /**
+     * Get the number of requests currently in flight
+     */
+    public int getInFlightCount()
+    {
+        WebPreferencesWorkerPool workerPool = this.workerPool;
+        return workerPool != null ? workerPool.getInFlightCount() : 0;
     }
     
+    public IWebPreferencesTransport getTransport()
+    {
+        return this.service.getTransport();
+    }
+
+    /**
+     * Set the transport used to deliver requests for this host, for example to
+     * use a {@link WebPreferencesTransportLoopback} in place of HTTP
+     */
+    public void setTransport(IWebPreferencesTransport transport)
+    {
+        this.service.setTransport(transport);
+    }
+
+    /**
+     * Get the number of tasks currently queued
+     */
+    public int getQueueSize()
+    {
+        return this.tasks.size();
+    }
+
+    public int getQueueCapacity()
+    {
+        return this.tasks.getCapacity();
+    }
+
+    /**
+     * Get the total number of requests which were rejected because the queue
+     * was full
+     */
+    public long getRejectedCount()
+    {
+        return this.tasks.getRejectedCount();
+    }
+
+    /**
+     * Get the total number of queued GET requests which were dropped to make
+     * room for newer requests
+     */
+    public long getDroppedCount()
+    {
+        return this.tasks.getDroppedCount();
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return this.tasks.getOverflowPolicy();
+    }
+
+    /**
+     * Set the policy to apply when a request is submitted whilst the queue is
+     * full, see {@link OverflowPolicy}
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+    {
+        this.setOverflowPolicy(overflowPolicy, 0L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the policy to apply when a request is submitted whilst the queue is
+     * full, see {@link OverflowPolicy}
+     *
+     * @param overflowPolicy overflow policy
+     * @param blockTimeout maximum time to block the submitting thread for when
+     *      using {@link OverflowPolicy#BLOCK}
+     * @param unit time unit for blockTimeout
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy, long blockTimeout, TimeUnit unit)
+    {
+        if (overflowPolicy == null)
+        {
+            throw new IllegalArgumentException("Overflow policy cannot be null");
+        }
+
+        this.tasks.setOverflowPolicy(overflowPolicy, blockTimeout, unit);
+    }
+
+    /**
+     * Get the current request rate limit for this host in requests per
+     * minute, 0 if requests are not rate limited
+     */
+    public int getRateLimit()
+    {
+        return this.rateLimiter.getRate();
+    }
+
+    /**
+     * Set the request rate limit for this host in requests per minute, 0 to
+     * disable rate limiting. The limit is replaced by the rate advertised by
+     * the server as soon as a response is received which specifies one.
+     */
+    public void setRateLimit(int requestsPerMinute)
+    {
+        this.rateLimiter.setRate(requestsPerMinute);
+    }
+
+    /**
+     * Get the time in milliseconds until the next request can be dispatched
+     */
+    public long getRateLimitDelay()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.rateLimiter.getDelay());
+    }
+
+    public SchedulingMode getSchedulingMode()
+    {
+        return this.schedulingMode;
+    }
+
+    /**
+     * Set the source of time for this provider's tick listeners and request
+     * deadlines, see {@link SchedulingMode}
+     */
+    public void setSchedulingMode(SchedulingMode schedulingMode)
+    {
+        if (schedulingMode == null)
+        {
+            throw new IllegalArgumentException("Scheduling mode cannot be null");
+        }
+
+        synchronized (this.clockLock)
+        {
+            if (schedulingMode == this.schedulingMode)
+            {
+                return;
+            }
+
+            this.schedulingMode = schedulingMode;
+
+            if (schedulingMode == SchedulingMode.WALL_CLOCK)
+            {
+                this.startClock();
+            }
+            else if (this.clock != null)
+            {
+                this.clock.shutdown();
+                this.clock = null;
+            }
+        }
+    }
+
+    /**
+     * Get the time in milliseconds within which requests must complete in
+     * {@link SchedulingMode#WALL_CLOCK} mode
+     */
+    public long getRequestTimeout()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.requestTimeoutNanos);
+    }
+
+    /**
+     * Set the time within which requests must complete in
+     * {@link SchedulingMode#WALL_CLOCK} mode, measured from when the request
+     * is submitted. Requests which have not completed in time fail with
+     * {@link RequestFailureReason#TIMED_OUT}.
+     */
+    public void setRequestTimeout(long timeout, TimeUnit unit)
+    {
+        if (timeout < 1)
+        {
+            throw new IllegalArgumentException("Request timeout must be positive");
+        }
+
+        this.requestTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Add a listener which is called once per tick, either from
+     * {@link #onTick} or from the provider's clock thread depending on the
+     * current {@link SchedulingMode}
+     */
+    public void addTickListener(Runnable listener)
+    {
+        this.tickListeners.add(listener);
+    }
+
+    public void removeTickListener(Runnable listener)
+    {
+        this.tickListeners.remove(listener);
+    }
+
+    /**
+     * Called on each game tick, ignored in wall clock mode
+     */
     public void onTick()
     {
+        if (this.schedulingMode == SchedulingMode.TICK)
+        {
+            this.fireTick();
+        }
+    }
+
+    private void startClock()
+    {
+        final ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "WebPreferencesProvider clock thread [" + WebPreferencesProvider.this.hostName + "]");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long period = TimeUnit.NANOSECONDS.toMillis(WebPreferencesProvider.TICK_NANOS);
+        clock.scheduleAtFixedRate(new Runnable()
+        {
+            private final long origin = System.nanoTime();
+
+            private long ticks;
+
+            /**
+             * Fire one tick for each tick period which has elapsed on the
+             * monotonic clock since the last run
+             */
+            @Override
+            public void run()
+            {
+                if (clock.isShutdown())
+                {
+                    return;
+                }
+
+                long due = (System.nanoTime() - this.origin) / WebPreferencesProvider.TICK_NANOS;
+                if (due - this.ticks > WebPreferencesProvider.MAX_CATCH_UP_TICKS)
+                {
+                    this.ticks = due - WebPreferencesProvider.MAX_CATCH_UP_TICKS;
+                }
+
+                while (this.ticks < due)
+                {
+                    if (++this.ticks % WebPreferencesProvider.DEADLINE_CHECK_TICKS == 0)
+                    {
+                        WebPreferencesProvider.this.expireTasks();
+                    }
+
+                    WebPreferencesProvider.this.fireTick();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        this.clock = clock;
+    }
+
+    private void fireTick()
+    {
+        for (Runnable listener : this.tickListeners)
+        {
+            try
+            {
+                listener.run();
+            }
+            catch (Exception ex)
+            {
+                LiteLoaderLogger.warning(ex, "Error in WebPreferencesProvider [%s] tick listener: %s", this.hostName, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Fail queued and active tasks which have passed their deadline
+     */
+    private void expireTasks()
+    {
+        final long now = System.nanoTime();
+        final List<WebPreferencesServiceTask> expired = new ArrayList<WebPreferencesServiceTask>();
+
+        this.tasks.removeIf(new Predicate<WebPreferencesServiceTask>()
+        {
+            @Override
+            public boolean apply(WebPreferencesServiceTask queued)
+            {
+                if (queued.isExpired(now))
+                {
+                    expired.add(queued);
+                    return true;
+                }
+
+                return false;
+            }
+        });
+
+        for (WebPreferencesServiceTask task : this.activeTasks)
+        {
+            if (task.isExpired(now))
+            {
+                expired.add(task);
+            }
+        }
+
+        for (WebPreferencesServiceTask task : expired)
+        {
+            LiteLoaderLogger.debug("WebPreferencesProvider [%s] timed out %s for %s", this.hostName,
+                    task.getClass().getSimpleName(), task.getUUIDs());
+            task.expire();
+        }
     }
     
     @Override
@@ -59,21 +567,43 @@ public class WebPreferencesProvider extends Thread implements IWebPreferencesPro
     {
         try
         {
-            while (this.active)
+            while (!this.isInterrupted())
             {
+                this.circuitBreaker.acquire();
+
+                // Wait for a token before taking a task, so that tasks queued whilst we are paced can still be merged and batched
+                this.rateLimiter.acquire();
                 WebPreferencesServiceTask task = this.tasks.take();
                 try
                 {
-                    LiteLoaderLogger.debug("WebPreferencesProvider [%s] is processing %s for %s",  this.hostName,
-                            task.getClass().getSimpleName(), task.getRequest().getUUID());
-                    this.service.submit(task.getRequest());
+                    task = this.coalesce(task);
+                    this.activeTasks.add(task);
+
+                    WebPreferencesWorkerPool workerPool;
+                    synchronized (this.workerPoolLock)
+                    {
+                        this.dispatching = true;
+                        workerPool = this.workerPool;
+                    }
+
+                    if (workerPool != null)
+                    {
+                        workerPool.dispatch(task);
+                    }
+                    else
+                    {
+                        this.process(task);
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    this.onDispatchFailed(task, ex, RequestFailureReason.DROPPED);
+                    throw ex;
                 }
                 catch (Throwable th)
                 {
-                    if (th instanceof InterruptedException) throw (InterruptedException)th;
                     th.printStackTrace();
-
-                    this.onRequestFailed(th, 1);
+                    this.onDispatchFailed(task, th, RequestFailureReason.UNKNOWN);
                 }
             }
         }
@@ -83,6 +613,264 @@ public class WebPreferencesProvider extends Thread implements IWebPreferencesPro
         }
     }
 
+    /**
+     * Fail a task which could not be handed to the service, so that the
+     * provider thread survives and the client is not left waiting
+     */
+    void onDispatchFailed(WebPreferencesServiceTask task, Throwable th, RequestFailureReason reason)
+    {
+        this.activeTasks.remove(task);
+
+        try
+        {
+            task.onRequestFailed(task.getRequest(), th, reason);
+        }
+        catch (Throwable th2)
+        {
+            th2.printStackTrace();
+        }
+    }
+
+    void process(WebPreferencesServiceTask task)
+    {
+        try
+        {
+            if (this.prepare(task))
+            {
+                LiteLoaderLogger.debug("WebPreferencesProvider [%s] is processing %s for %s",  this.hostName,
+                        task.getClass().getSimpleName(), task.getUUIDs());
+                this.service.submit(task.getRequest());
+            }
+        }
+        catch (Throwable th)
+        {
+            th.printStackTrace();
+
+            this.onRequestFailed(th, 1);
+        }
+        finally
+        {
+            this.activeTasks.remove(task);
+        }
+    }
+
+    /**
+     * Last chance to drop a cancelled task before it is sent
+     *
+     * @return true if the task should be sent
+     */
+    private boolean prepare(WebPreferencesServiceTask task)
+    {
+        if (task.isCancelled())
+        {
+            LiteLoaderLogger.debug("WebPreferencesProvider [%s] is discarding cancelled %s for %s",  this.hostName,
+                    task.getClass().getSimpleName(), task.getUUIDs());
+            return false;
+        }
+
+        if (task instanceof WebPreferencesServiceTaskBatchGet)
+        {
+            ((WebPreferencesServiceTaskBatchGet)task).removeCancelledTasks();
+        }
+
+        return true;
+    }
+
+    /**
+     * Merge any queued GET tasks with the same privacy level as the supplied
+     * task into a single batch task. GETs for a UUID which has an earlier
+     * queued SET are left in the queue so that they are not sent out of order.
+     */
+    private WebPreferencesServiceTask coalesce(WebPreferencesServiceTask task)
+    {
+        final int maxBatchSize = this.maxBatchSize;
+        if (maxBatchSize < 2 || !(task instanceof WebPreferencesServiceTaskGet) || this.tasks.isEmpty())
+        {
+            return task;
+        }
+        
+        final boolean isPrivate = ((WebPreferencesRequestGet)task.getRequest()).isPrivate();
+        final List<WebPreferencesServiceTask> batch = new ArrayList<WebPreferencesServiceTask>();
+        final Map<String, Set<String>> keys = new HashMap<String, Set<String>>();
+        final Map<String, String> versions = new HashMap<String, String>();
+        final Set<String> skippedUUIDs = new HashSet<String>();
+
+        batch.add(task);
+        keys.put(task.getRequest().getUUID(), task.getRequest().getKeys());
+        if (((WebPreferencesRequestGet)task.getRequest()).getVersion() != null)
+        {
+            versions.put(task.getRequest().getUUID(), ((WebPreferencesRequestGet)task.getRequest()).getVersion());
+        }
+
+        this.tasks.removeIf(new Predicate<WebPreferencesServiceTask>()
+        {
+            @Override
+            public boolean apply(WebPreferencesServiceTask queued)
+            {
+                String uuid = queued.getRequest().getUUID();
+
+                if (batch.size() >= maxBatchSize)
+                {
+                    return false;
+                }
+
+                if (!(queued instanceof WebPreferencesServiceTaskGet) || ((WebPreferencesRequestGet)queued.getRequest()).isPrivate() != isPrivate
+                        || keys.containsKey(uuid) || skippedUUIDs.contains(uuid))
+                {
+                    skippedUUIDs.add(uuid);
+                    return false;
+                }
+
+                batch.add(queued);
+                keys.put(uuid, queued.getRequest().getKeys());
+                String version = ((WebPreferencesRequestGet)queued.getRequest()).getVersion();
+                if (version != null)
+                {
+                    versions.put(uuid, version);
+                }
+                return true;
+            }
+        });
+
+        if (batch.size() < 2)
+        {
+            return task;
+        }
+
+        LiteLoaderLogger.debug("WebPreferencesProvider [%s] is coalescing %d GET requests", this.hostName, batch.size());
+        WebPreferencesServiceTask batchTask = new WebPreferencesServiceTaskBatchGet(this, batch);
+        batchTask.setRequest(new WebPreferencesRequestMultiGet(batchTask, keys, versions, isPrivate));
+        return batchTask;
+    }
+
+    CompletableFuture<IWebPreferencesResponse> processAsync(final WebPreferencesServiceTask task)
+    {
+        CompletableFuture<IWebPreferencesResponse> future = CompletableFuture.completedFuture(null);
+
+        try
+        {
+            if (this.prepare(task))
+            {
+                LiteLoaderLogger.debug("WebPreferencesProvider [%s] is processing %s for %s asynchronously",  this.hostName,
+                        task.getClass().getSimpleName(), task.getUUIDs());
+                future = this.service.submitAsync(task.getRequest());
+            }
+        }
+        catch (Throwable th)
+        {
+            th.printStackTrace();
+
+            this.onRequestFailed(th, 1);
+        }
+
+        // Completed by the submission or by the task expiring, so a request which never completes does not hold its slot forever
+        final CompletableFuture<IWebPreferencesResponse> completion = new CompletableFuture<IWebPreferencesResponse>();
+        task.setCompletion(completion);
+        future.whenComplete(new BiConsumer<IWebPreferencesResponse, Throwable>()
+        {
+            @Override
+            public void accept(IWebPreferencesResponse response, Throwable th)
+            {
+                if (th != null)
+                {
+                    completion.completeExceptionally(th);
+                }
+                else
+                {
+                    completion.complete(response);
+                }
+            }
+        });
+
+        return completion.whenComplete(new BiConsumer<IWebPreferencesResponse, Throwable>()
+        {
+            @Override
+            public void accept(IWebPreferencesResponse response, Throwable th)
+            {
+                WebPreferencesProvider.this.activeTasks.remove(task);
+            }
+        });
+    }
+
+    /**
+     * Cancel all queued and active requests for the specified UUID. Queued
+     * requests are removed from the queue, requests which have already been
+     * taken from the queue are dropped before they are sent if possible, and
+     * no callbacks are delivered for any cancelled request.
+     *
+     * @param uuid UUID to cancel requests for
+     * @return number of requests cancelled
+     */
+    @Override
+    public int cancelRequests(final String uuid)
+    {
+        int cancelled = this.tasks.removeIf(new Predicate<WebPreferencesServiceTask>()
+        {
+            @Override
+            public boolean apply(WebPreferencesServiceTask queued)
+            {
+                if (queued.getUUIDs().contains(uuid))
+                {
+                    queued.cancel();
+                    return true;
+                }
+
+                return false;
+            }
+        });
+
+        for (WebPreferencesServiceTask task : this.activeTasks)
+        {
+            if (task.getUUIDs().contains(uuid))
+            {
+                task.cancel(uuid);
+                cancelled++;
+            }
+        }
+
+        if (cancelled > 0)
+        {
+            LiteLoaderLogger.debug("WebPreferencesProvider [%s] cancelled %d requests for %s", this.hostName, cancelled, uuid);
+        }
+
+        return cancelled;
+    }
+
+    @Override
+    public void onReceivedResponse(IWebPreferencesResponse response)
+    {
+        if (response == null)
+        {
+            return;
+        }
+
+        if (response.getRateLimit() > 0)
+        {
+            this.rateLimiter.setRate(response.getRateLimit());
+        }
+
+        if (response.getRetryAfter() > 0)
+        {
+            LiteLoaderLogger.debug("WebPreferencesProvider [%s] holding requests for %ds", this.hostName, response.getRetryAfter());
+            this.rateLimiter.retryAfter(response.getRetryAfter(), TimeUnit.SECONDS);
+        }
+        else if (response.getResponse() != null && response.getResponse().startsWith("429"))
+        {
+            this.rateLimiter.retryAfter(WebPreferencesProvider.DEFAULT_THROTTLE_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void onRequestSucceeded()
+    {
+        if (this.circuitBreaker.getState() != WebPreferencesCircuitBreaker.State.CLOSED)
+        {
+            LiteLoaderLogger.info("WebPreferencesProvider for " + this.hostName + " has recovered");
+        }
+
+        this.circuitBreaker.recordSuccess();
+    }
+
     @Override
     public void onKeyRequestFailed()
     {
@@ -97,18 +885,28 @@ public class WebPreferencesProvider extends Thread implements IWebPreferencesPro
     
     private void registerError(int severity)
     {
-        this.failureCount += severity;
-        if (this.failureCount >= this.failureThreshold)
+        if (this.circuitBreaker.recordFailure(severity))
         {
-            LiteLoaderLogger.warning("WebPreferencesProvider for " + this.hostName + " is terminating. Too many failed requests.");
-            this.active = false;
-            this.tasks.clear();
-            this.interrupt();
+            LiteLoaderLogger.warning("WebPreferencesProvider for " + this.hostName + " is suspending requests for "
+                    + this.circuitBreaker.getRetryDelay() + "ms. Too many failed requests.");
         }
     }
     
     @Override
     public boolean requestGet(IWebPreferencesClient client, String uuid, Set<String> keys, boolean getPrivate)
+    {
+        return this.requestGet(client, uuid, keys, getPrivate, RequestPriority.VISIBLE);
+    }
+
+    @Override
+    public boolean requestGet(IWebPreferencesClient client, String uuid, Set<String> keys, boolean getPrivate, RequestPriority priority)
+    {
+        return this.requestGet(client, uuid, keys, getPrivate, priority, null);
+    }
+
+    @Override
+    public boolean requestGet(IWebPreferencesClient client, String uuid, Set<String> keys, boolean getPrivate, RequestPriority priority,
+            String version)
     {
         if (!this.isActive())
         {
@@ -116,12 +914,45 @@ public class WebPreferencesProvider extends Thread implements IWebPreferencesPro
         }
 
         WebPreferencesServiceTask task = new WebPreferencesServiceTaskGet(this, client);
-        task.setRequest(new WebPreferencesRequestGet(task, uuid, keys, getPrivate));
-        return this.tasks.offer(task);
+        task.setRequest(new WebPreferencesRequestGet(task, uuid, keys, getPrivate, version));
+        return this.submit(task, priority);
+    }
+
+    @Override
+    public boolean requestChanges(IWebPreferencesChangeListener listener, Set<String> uuids, String cursor)
+    {
+        if (!this.isActive())
+        {
+            return false;
+        }
+
+        WebPreferencesServiceTask task = new WebPreferencesServiceTaskChanges(this, listener);
+        task.setRequest(new WebPreferencesRequestChanges(task, uuids, cursor));
+        return this.submit(task, RequestPriority.BACKGROUND);
+    }
+
+    /**
+     * Open a subscription to the public values of the specified UUIDs. The
+     * request is held open by the server so it is submitted directly to the
+     * service rather than occupying a slot in the queue.
+     *
+     * @param delegate delegate which receives the pushed values
+     * @param cursor cursor from an earlier response, or null
+     * @param holdSeconds maximum time the server should hold the request open
+     */
+    public void requestSubscription(IWebPreferencesServiceDelegate delegate, Set<String> uuids, String cursor, int holdSeconds)
+    {
+        this.service.submitAsync(new WebPreferencesRequestSubscribe(delegate, uuids, cursor, holdSeconds));
     }
 
     @Override
     public boolean requestSet(IWebPreferencesClient client, String uuid, Map<String, String> values, boolean setPrivate)
+    {
+        return this.requestSet(client, uuid, values, setPrivate, RequestPriority.VISIBLE);
+    }
+
+    @Override
+    public boolean requestSet(IWebPreferencesClient client, String uuid, Map<String, String> values, boolean setPrivate, RequestPriority priority)
     {
         if (!this.isActive())
         {
@@ -130,7 +961,26 @@ public class WebPreferencesProvider extends Thread implements IWebPreferencesPro
 
         WebPreferencesServiceTask task = new WebPreferencesServiceTaskSet(this, client);
         task.setRequest(new WebPreferencesRequestSet(task, uuid, values, setPrivate));
-        return this.tasks.offer(task);
+        return this.submit(task, priority);
+    }
+
+    private boolean submit(WebPreferencesServiceTask task, RequestPriority priority)
+    {
+        if (this.schedulingMode == SchedulingMode.WALL_CLOCK)
+        {
+            task.setDeadline(System.nanoTime() + this.requestTimeoutNanos);
+        }
+
+        return this.tasks.offer(task, priority);
+    }
+
+    @Override
+    public void addCapacityListener(IWebPreferencesCapacityListener listener)
+    {
+        if (!this.tasks.addCapacityListener(listener))
+        {
+            listener.onCapacityAvailable();
+        }
     }
 
     @Override
@@ -0,0 +1,145 @@
+package com.mumfrey.webprefs.framework;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket used by the provider to pace requests to a host. The bucket is
+ * unlimited until a rate is configured or advertised by the server, and a
+ * Retry-After from the server empties the bucket and holds all requests until
+ * the specified time has elapsed.
+ *
+ * @author Adam Mummery-Smith
+ */
+class WebPreferencesRateLimiter
+{
+    /**
+     * Burst size as a fraction of the per-minute rate, so that a freshly
+     * refilled bucket cannot spend the whole minute's budget at once
+     */
+    private static final int BURST_DIVISOR = 10;
+
+    private static final long NANOS_PER_MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Requests per minute, 0 for unlimited
+     */
+    private int rate;
+
+    private double capacity;
+
+    private double tokens;
+
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * nanoTime before which no requests may be sent
+     */
+    private long blockedUntil;
+
+    private boolean blocked;
+
+    /**
+     * Get the current rate in requests per minute, 0 means unlimited
+     */
+    synchronized int getRate()
+    {
+        return this.rate;
+    }
+
+    /**
+     * Set the rate in requests per minute, 0 or less removes the limit
+     */
+    synchronized void setRate(int rate)
+    {
+        rate = Math.max(0, rate);
+        if (rate == this.rate)
+        {
+            return;
+        }
+
+        this.refill(System.nanoTime());
+        boolean wasUnlimited = this.rate == 0;
+        this.rate = rate;
+        this.capacity = Math.max(1, rate / WebPreferencesRateLimiter.BURST_DIVISOR);
+        this.tokens = wasUnlimited ? this.capacity : Math.min(this.tokens, this.capacity);
+        this.notifyAll();
+    }
+
+    /**
+     * Hold all requests for the specified time, the bucket is emptied so that
+     * requests resume at the configured rate afterwards rather than in a burst
+     */
+    synchronized void retryAfter(long delay, TimeUnit unit)
+    {
+        long until = System.nanoTime() + unit.toNanos(delay);
+        if (!this.blocked || until - this.blockedUntil > 0)
+        {
+            this.blockedUntil = until;
+            this.blocked = true;
+        }
+
+        this.tokens = 0;
+    }
+
+    /**
+     * Get the time in nanoseconds until a request can be sent, 0 if a request
+     * can be sent now
+     */
+    synchronized long getDelay()
+    {
+        return this.getDelay(System.nanoTime());
+    }
+
+    /**
+     * Wait until a request can be sent and take a token from the bucket
+     */
+    synchronized void acquire() throws InterruptedException
+    {
+        for (long now = System.nanoTime(), delay; (delay = this.getDelay(now)) > 0; now = System.nanoTime())
+        {
+            TimeUnit.NANOSECONDS.timedWait(this, delay);
+        }
+
+        if (this.rate > 0)
+        {
+            this.tokens -= 1.0;
+        }
+    }
+
+    private long getDelay(long now)
+    {
+        if (this.blocked)
+        {
+            if (this.blockedUntil - now > 0)
+            {
+                return this.blockedUntil - now;
+            }
+
+            this.blocked = false;
+            this.lastRefill = now;
+        }
+
+        if (this.rate < 1)
+        {
+            return 0;
+        }
+
+        this.refill(now);
+        if (this.tokens >= 1.0)
+        {
+            return 0;
+        }
+
+        return Math.max(1L, (long)((1.0 - this.tokens) * WebPreferencesRateLimiter.NANOS_PER_MINUTE / this.rate));
+    }
+
+    private void refill(long now)
+    {
+        if (this.rate > 0 && !this.blocked)
+        {
+            this.tokens = Math.min(this.capacity, this.tokens + (double)(now - this.lastRefill) * this.rate / WebPreferencesRateLimiter.NANOS_PER_MINUTE);
+        }
+
+        this.lastRefill = now;
+    }
+}
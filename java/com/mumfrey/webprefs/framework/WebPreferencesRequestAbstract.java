@@ -71,6 +71,12 @@ abstract class WebPreferencesRequestAbstract implements IWebPreferencesRequest
         return params;
     }
 
+    @Override
+    public int getTimeout()
+    {
+        return 0;
+    }
+
     protected void addParams(Map<String, String> params)
     {
         if (this.isValidationRequired())
@@ -84,7 +90,11 @@ abstract class WebPreferencesRequestAbstract implements IWebPreferencesRequest
             params.put("u", session.getUsername());
         }
 
-        params.put("i", this.uuid);
+        if (this.uuid != null)
+        {
+            params.put("i", this.uuid);
+        }
+
         params.put("j", this.toJson());
     }
     
@@ -93,7 +103,7 @@ abstract class WebPreferencesRequestAbstract implements IWebPreferencesRequest
     {
         if (response == null)
         {
-            throw new InvalidResponseException(null, "Error reading server response");
+            throw new InvalidResponseException(RequestFailureReason.BAD_DATA, "Error reading server response");
         }
         
         if (response.getResponse().startsWith("500"))
@@ -102,26 +112,40 @@ abstract class WebPreferencesRequestAbstract implements IWebPreferencesRequest
                     "The server returned an invalid resonse: " + response.getResponse(), response.getThrowable());
         }
 
-        if (!response.getResponse().startsWith("200"))
+        if (!response.getResponse().startsWith("200") && !(response.isNotModified() && this.isConditional()))
         {
             RequestFailureReason reason = RequestFailureReason.UNKNOWN;
 
             if (response.getResponse().startsWith("429")) reason = RequestFailureReason.THROTTLED;
             if (response.getResponse().startsWith("401")) reason = RequestFailureReason.UNAUTHORISED;
+            if (response.getResponse().startsWith("404")) reason = RequestFailureReason.NOT_FOUND;
 
             String message = response.getMessage();
             throw new InvalidResponseException(reason, 
                     "The server responsed with " + response.getResponse() + (message != null ? " \"" + message + "\"" : ""));
         }
 
+        this.validateResponseUUID(response);
+        this.validateResponse(response);
+    }
+    
+    /**
+     * Get whether this request carries a version which allows the server to
+     * respond with "304 Not Modified"
+     */
+    protected boolean isConditional()
+    {
+        return false;
+    }
+
+    protected void validateResponseUUID(IWebPreferencesResponse response)
+    {
         if (!this.getUUID().equals(response.getUUID()))
         {
             throw new InvalidResponseException(RequestFailureReason.UUID_MISMATCH, "The response UUID did not match the request");
         }
-
-        this.validateResponse(response);
     }
-    
+
     protected abstract void validateResponse(IWebPreferencesResponse response);
     
     protected final void validateKey(String key)
@@ -0,0 +1,83 @@
+package com.mumfrey.webprefs.framework;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+import com.mumfrey.webprefs.exceptions.InvalidRequestException;
+import com.mumfrey.webprefs.exceptions.InvalidResponseException;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesServiceDelegate;
+
+/**
+ * Asks the server which of a set of UUIDs have public values which changed
+ * since a cursor returned by an earlier request. If no cursor is supplied
+ * then all of the UUIDs are reported as changed.
+ */
+class WebPreferencesRequestChanges extends WebPreferencesRequestAbstract
+{
+    private static final long serialVersionUID = 1L;
+
+    @Expose @SerializedName("changes")
+    private final Set<String> uuids = new HashSet<String>();
+
+    @Expose @SerializedName("since")
+    private String cursor;
+
+    public WebPreferencesRequestChanges(IWebPreferencesServiceDelegate delegate, Set<String> uuids, String cursor)
+    {
+        super(delegate, null);
+
+        if (uuids == null || uuids.isEmpty())
+        {
+            throw new InvalidRequestException(RequestFailureReason.BAD_PARAMS, "Cannot request changes for an empty set");
+        }
+
+        this.uuids.addAll(uuids);
+        this.cursor = cursor;
+    }
+
+    @Override
+    protected String getPath()
+    {
+        return "/changes";
+    }
+
+    @Override
+    public boolean isValidationRequired()
+    {
+        return false;
+    }
+
+    @Override
+    public Set<String> getKeys()
+    {
+        return new HashSet<String>();
+    }
+
+    public Set<String> getUUIDs()
+    {
+        return this.uuids;
+    }
+
+    public String getCursor()
+    {
+        return this.cursor;
+    }
+
+    @Override
+    protected void validateResponseUUID(IWebPreferencesResponse response)
+    {
+        // Changes are not specific to a single UUID
+    }
+
+    @Override
+    protected void validateResponse(IWebPreferencesResponse response)
+    {
+        if (!response.hasChanges() || response.getCursor() == null)
+        {
+            throw new InvalidResponseException(RequestFailureReason.BAD_DATA, "The server did not respond with changes and a cursor");
+        }
+    }
+}
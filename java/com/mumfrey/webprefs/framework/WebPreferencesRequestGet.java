@@ -6,7 +6,6 @@ import java.util.Set;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 import com.mumfrey.webprefs.exceptions.InvalidRequestException;
-import com.mumfrey.webprefs.exceptions.InvalidResponseException;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesServiceDelegate;
 
@@ -20,12 +19,25 @@ class WebPreferencesRequestGet extends WebPreferencesRequestAbstract
     @Expose @SerializedName("private")
     private boolean isPrivate;
 
+    /**
+     * Version of the collection already held by the client, the server may
+     * respond with "304 Not Modified" and no values if it is still current,
+     * either in the response envelope or as a bare HTTP 304
+     */
+    @Expose @SerializedName("ver")
+    private String version;
+
     public WebPreferencesRequestGet(IWebPreferencesServiceDelegate delegate, String uuid, Set<String> keys)
     {
         this(delegate, uuid, keys, false);
     }
 
     public WebPreferencesRequestGet(IWebPreferencesServiceDelegate delegate, String uuid, Set<String> keys, boolean isPrivate)
+    {
+        this(delegate, uuid, keys, isPrivate, null);
+    }
+
+    public WebPreferencesRequestGet(IWebPreferencesServiceDelegate delegate, String uuid, Set<String> keys, boolean isPrivate, String version)
     {
         super(delegate, uuid);
 
@@ -38,6 +50,7 @@ class WebPreferencesRequestGet extends WebPreferencesRequestAbstract
 
         this.keys.addAll(keys);
         this.isPrivate = isPrivate;
+        this.version = version;
     }
 
     @Override
@@ -58,22 +71,44 @@ class WebPreferencesRequestGet extends WebPreferencesRequestAbstract
         return this.keys;
     }
 
+    public boolean isPrivate()
+    {
+        return this.isPrivate;
+    }
+
+    public String getVersion()
+    {
+        return this.version;
+    }
+
     @Override
-    protected void validateResponse(IWebPreferencesResponse response)
+    protected boolean isConditional()
     {
-        if (response.hasValues())
+        return this.version != null;
+    }
+
+    /**
+     * Merge additional keys into this request, only valid before the request
+     * has been submitted. The version is dropped unless both requests were
+     * made against the same version.
+     */
+    void addKeys(Set<String> keys, String version)
+    {
+        this.validate(keys);
+        this.keys.addAll(keys);
+
+        if (this.version != null && !this.version.equals(version))
         {
-            Set<String> responseKeys = response.getValues().keySet();
-            for (String key : this.keys)
-            {
-                if (!responseKeys.contains(key))
-                {
-                    throw new InvalidResponseException(RequestFailureReason.BAD_DATA,
-                            "The server responded with an incomplete key set, missing key [" + key + "]");
-                }
-            }
+            this.version = null;
         }
     }
+
+    @Override
+    protected void validateResponse(IWebPreferencesResponse response)
+    {
+        // Requested keys missing from the response are keys the server does not have, the client records them as
+        // absent so a partial response is not a failure
+    }
     
     private void validate(Set<String> keys)
     {
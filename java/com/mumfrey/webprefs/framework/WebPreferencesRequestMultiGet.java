@@ -0,0 +1,144 @@
+package com.mumfrey.webprefs.framework;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+import com.mumfrey.webprefs.exceptions.InvalidRequestException;
+import com.mumfrey.webprefs.exceptions.InvalidResponseException;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesServiceDelegate;
+
+/**
+ * GET request for multiple UUIDs at once, the server responds with a batch
+ * containing one response per UUID which is split back out to the individual
+ * requests by {@link WebPreferencesServiceTaskBatchGet}.
+ */
+class WebPreferencesRequestMultiGet extends WebPreferencesRequestAbstract
+{
+    private static final long serialVersionUID = 1L;
+
+    @Expose @SerializedName("mget")
+    private final Map<String, Set<String>> keys = new HashMap<String, Set<String>>();
+
+    /**
+     * Versions already held by the client for UUIDs which are requested
+     * conditionally
+     */
+    @Expose @SerializedName("mver")
+    private final Map<String, String> versions = new HashMap<String, String>();
+
+    @Expose @SerializedName("private")
+    private boolean isPrivate;
+
+    public WebPreferencesRequestMultiGet(IWebPreferencesServiceDelegate delegate, Map<String, Set<String>> keys, boolean isPrivate)
+    {
+        this(delegate, keys, Collections.<String, String>emptyMap(), isPrivate);
+    }
+
+    public WebPreferencesRequestMultiGet(IWebPreferencesServiceDelegate delegate, Map<String, Set<String>> keys, Map<String, String> versions,
+            boolean isPrivate)
+    {
+        super(delegate, null);
+
+        if (isPrivate && delegate.getSession() == null)
+        {
+            throw new InvalidRequestException(RequestFailureReason.NO_SESSION, "Cannot request private values without supplying a session");
+        }
+
+        this.validate(keys);
+
+        for (Entry<String, Set<String>> entry : keys.entrySet())
+        {
+            this.keys.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+        }
+
+        this.versions.putAll(versions);
+
+        this.isPrivate = isPrivate;
+    }
+
+    @Override
+    protected String getPath()
+    {
+        return "/mget";
+    }
+
+    @Override
+    public boolean isValidationRequired()
+    {
+        return this.isPrivate;
+    }
+
+    @Override
+    public Set<String> getKeys()
+    {
+        Set<String> keys = new HashSet<String>();
+        for (Set<String> uuidKeys : this.keys.values())
+        {
+            keys.addAll(uuidKeys);
+        }
+        return keys;
+    }
+
+    public Set<String> getUUIDs()
+    {
+        return this.keys.keySet();
+    }
+
+    public boolean isPrivate()
+    {
+        return this.isPrivate;
+    }
+
+    /**
+     * A batch is conditional if any of its UUIDs carries a version, the
+     * server may then reply that the whole batch is not modified
+     */
+    @Override
+    protected boolean isConditional()
+    {
+        return !this.versions.isEmpty();
+    }
+
+    @Override
+    protected void validateResponseUUID(IWebPreferencesResponse response)
+    {
+        if (!response.hasBatchResponses())
+        {
+            throw new InvalidResponseException(RequestFailureReason.BAD_DATA, "The server did not respond with a batch");
+        }
+    }
+
+    @Override
+    protected void validateResponse(IWebPreferencesResponse response)
+    {
+        // Batch entries are validated individually by the originating requests
+    }
+
+    private void validate(Map<String, Set<String>> keys)
+    {
+        if (keys == null || keys.isEmpty())
+        {
+            throw new InvalidRequestException(RequestFailureReason.BAD_PARAMS, "Cannot request an empty set");
+        }
+
+        for (Entry<String, Set<String>> entry : keys.entrySet())
+        {
+            if (entry.getValue() == null || entry.getValue().isEmpty())
+            {
+                throw new InvalidRequestException(RequestFailureReason.BAD_PARAMS, "Cannot request an empty set for " + entry.getKey());
+            }
+
+            for (String key : entry.getValue())
+            {
+                this.validateKey(key);
+            }
+        }
+    }
+}
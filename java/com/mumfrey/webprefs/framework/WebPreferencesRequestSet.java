@@ -65,6 +65,22 @@ class WebPreferencesRequestSet extends WebPreferencesRequestAbstract
         return this.map;
     }
 
+    public boolean isPrivate()
+    {
+        return this.isPrivate;
+    }
+
+    /**
+     * Merge additional values into this request, newer values replace any
+     * existing values for the same key. Only valid before the request has been
+     * submitted.
+     */
+    void putValues(Map<String, String> values)
+    {
+        this.validate(values);
+        this.map.putAll(values);
+    }
+
     @Override
     protected void validateResponse(IWebPreferencesResponse response)
     {
@@ -0,0 +1,92 @@
+package com.mumfrey.webprefs.framework;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+import com.mumfrey.webprefs.exceptions.InvalidResponseException;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesServiceDelegate;
+
+/**
+ * Long-poll subscription for changes to the public values of a set of UUIDs.
+ * The server holds the request open until values change or the hold time
+ * elapses, then responds with the changed values and a cursor for the next
+ * request. If no cursor is supplied the server responds immediately with a
+ * cursor and no values.
+ */
+class WebPreferencesRequestSubscribe extends WebPreferencesRequestAbstract
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Time to allow for the response in addition to the hold time
+     */
+    private static final int TIMEOUT_MARGIN_MSEC = 10000;
+
+    @Expose @SerializedName("subscribe")
+    private final Set<String> uuids = new HashSet<String>();
+
+    @Expose @SerializedName("since")
+    private String cursor;
+
+    /**
+     * Maximum time in seconds the server should hold the request open
+     */
+    @Expose @SerializedName("hold")
+    private int hold;
+
+    public WebPreferencesRequestSubscribe(IWebPreferencesServiceDelegate delegate, Set<String> uuids, String cursor, int hold)
+    {
+        super(delegate, null);
+
+        this.uuids.addAll(uuids);
+        this.cursor = cursor;
+        this.hold = hold;
+    }
+
+    @Override
+    protected String getPath()
+    {
+        return "/subscribe";
+    }
+
+    @Override
+    public boolean isValidationRequired()
+    {
+        return false;
+    }
+
+    @Override
+    public int getTimeout()
+    {
+        return this.hold * 1000 + WebPreferencesRequestSubscribe.TIMEOUT_MARGIN_MSEC;
+    }
+
+    @Override
+    public Set<String> getKeys()
+    {
+        return new HashSet<String>();
+    }
+
+    public Set<String> getUUIDs()
+    {
+        return this.uuids;
+    }
+
+    @Override
+    protected void validateResponseUUID(IWebPreferencesResponse response)
+    {
+        // Subscriptions are not specific to a single UUID
+    }
+
+    @Override
+    protected void validateResponse(IWebPreferencesResponse response)
+    {
+        if (response.getCursor() == null)
+        {
+            throw new InvalidResponseException(RequestFailureReason.BAD_DATA, "The server did not respond with a cursor");
+        }
+    }
+}
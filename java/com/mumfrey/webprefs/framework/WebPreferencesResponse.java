@@ -1,5 +1,8 @@
 package com.mumfrey.webprefs.framework;
 
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -39,8 +42,35 @@ class WebPreferencesResponse implements IWebPreferencesResponse
     @Expose @SerializedName("set")
     private List<String> set;
 
+    /**
+     * Version tag of the collection at the time of the response
+     */
+    @Expose @SerializedName("ver")
+    private String version;
+
+    /**
+     * UUIDs which changed since the cursor sent with a changes request
+     */
+    @Expose @SerializedName("changed")
+    private List<String> changed;
+
+    @Expose @SerializedName("cursor")
+    private String cursor;
+
+    /**
+     * Values which changed since the cursor sent with a subscription request,
+     * by UUID
+     */
+    @Expose @SerializedName("push")
+    private Map<String, Map<String, String>> pushed;
+
+    @Expose @SerializedName("batch")
+    private Map<String, WebPreferencesResponse> batch;
+
     private transient Throwable th;
 
+    private transient int retryAfter;
+
     public WebPreferencesResponse() {}
 
     private WebPreferencesResponse(String response, Throwable th)
@@ -79,6 +109,56 @@ class WebPreferencesResponse implements IWebPreferencesResponse
         return this.serverId;
     }
 
+    @Override
+    public int getRateLimit()
+    {
+        return this.rateLimit;
+    }
+
+    @Override
+    public int getRetryAfter()
+    {
+        return this.retryAfter;
+    }
+
+    /**
+     * Set the retry delay from the Retry-After header of the HTTP response,
+     * accepts either a delay in seconds or an HTTP date
+     */
+    void setRetryAfter(String retryAfter)
+    {
+        if (retryAfter == null || retryAfter.trim().isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            this.retryAfter = Math.max(0, Integer.parseInt(retryAfter.trim()));
+        }
+        catch (NumberFormatException ex)
+        {
+            try
+            {
+                long date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                this.retryAfter = (int)Math.max(0L, (date - System.currentTimeMillis() + 999L) / 1000L);
+            }
+            catch (DateTimeParseException ex1) {}
+        }
+    }
+
+    @Override
+    public String getVersion()
+    {
+        return this.version;
+    }
+
+    @Override
+    public boolean isNotModified()
+    {
+        return this.response != null && this.response.startsWith("304");
+    }
+
     @Override
     public boolean hasValues()
     {
@@ -103,11 +183,74 @@ class WebPreferencesResponse implements IWebPreferencesResponse
         return new HashSet<String>(this.set);
     }
 
+    @Override
+    public boolean hasChanges()
+    {
+        return this.changed != null;
+    }
+
+    @Override
+    public Set<String> getChanges()
+    {
+        return new HashSet<String>(this.changed);
+    }
+
+    @Override
+    public String getCursor()
+    {
+        return this.cursor;
+    }
+
+    @Override
+    public boolean hasPushedValues()
+    {
+        return this.pushed != null;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> getPushedValues()
+    {
+        return this.pushed;
+    }
+
+    @Override
+    public boolean hasBatchResponses()
+    {
+        return this.batch != null;
+    }
+
+    @Override
+    public IWebPreferencesResponse getBatchResponse(String uuid)
+    {
+        WebPreferencesResponse response = this.batch != null ? this.batch.get(uuid) : null;
+        if (response != null)
+        {
+            // Batch entries inherit the status and UUID of the enclosing response unless they specify their own
+            if (response.response == null) response.response = this.response;
+            if (response.uuid == null) response.uuid = uuid;
+        }
+        
+        return response;
+    }
+
     public static IWebPreferencesResponse fromJson(String json)
+    {
+        return WebPreferencesResponse.fromJson(json, null);
+    }
+
+    /**
+     * Parse a response and apply the value of the Retry-After header, if any
+     */
+    static IWebPreferencesResponse fromJson(String json, String retryAfter)
     {
         try
         {
-            return WebPreferencesResponse.gson.fromJson(json, WebPreferencesResponse.class);
+            WebPreferencesResponse response = WebPreferencesResponse.gson.fromJson(json, WebPreferencesResponse.class);
+            if (response != null)
+            {
+                response.setRetryAfter(retryAfter);
+            }
+            return response;
         }
         catch (JsonSyntaxException ex)
         {
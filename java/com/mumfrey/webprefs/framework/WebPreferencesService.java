@@ -2,27 +2,27 @@ package com.mumfrey.webprefs.framework;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.Proxy;
-import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import net.minecraft.util.Session;
 
-import org.apache.commons.io.IOUtils;
-
-import com.google.common.base.Charsets;
-import com.google.gson.Gson;
 import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
 import com.mumfrey.webprefs.exceptions.InvalidRequestException;
 import com.mumfrey.webprefs.exceptions.InvalidResponseException;
@@ -30,27 +30,62 @@ import com.mumfrey.webprefs.interfaces.IWebPreferencesRequest;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesService;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesServiceMonitor;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesTransport;
 
 class WebPreferencesService implements IWebPreferencesService
 {
-    private static final int TIMEOUT_MSEC = 5000;
+    /**
+     * Number of threads used for response handling and session validation for
+     * asynchronous requests, IO is performed by the transport
+     */
+    private static final int ASYNC_THREADS = 2;
 
-    private final Proxy proxy;
-    
     private final Session session;
 
     private final Map<String, String> serverKeys = new HashMap<String, String>();
 
-    private final List<IWebPreferencesServiceMonitor> monitors = new ArrayList<IWebPreferencesServiceMonitor>();
+    private final List<IWebPreferencesServiceMonitor> monitors = new CopyOnWriteArrayList<IWebPreferencesServiceMonitor>();
+
+    /**
+     * Lock held whilst validating a session, since requests may be submitted
+     * from multiple provider workers at once
+     */
+    private final Object validationLock = new Object();
 
     private long lastMojangAuth = 0L;
 
+    private volatile IWebPreferencesTransport transport;
+
+    private volatile ExecutorService asyncExecutor;
+
     WebPreferencesService(Proxy proxy, Session session)
     {
-        this.proxy = proxy;
+        this(new WebPreferencesTransportHttpAsync(proxy), session);
+    }
+
+    WebPreferencesService(IWebPreferencesTransport transport, Session session)
+    {
+        this.setTransport(transport);
         this.session = session;
     }
 
+    @Override
+    public IWebPreferencesTransport getTransport()
+    {
+        return this.transport;
+    }
+
+    @Override
+    public void setTransport(IWebPreferencesTransport transport)
+    {
+        if (transport == null)
+        {
+            throw new IllegalArgumentException("Transport cannot be null");
+        }
+
+        this.transport = transport;
+    }
+
     @Override
     public void addMonitor(IWebPreferencesServiceMonitor monitor)
     {
@@ -86,12 +121,83 @@ class WebPreferencesService implements IWebPreferencesService
             request.getDelegate().onRequestFailed(request, ex, ex.getReason());
         }
     }
+
+    @Override
+    public CompletableFuture<IWebPreferencesResponse> submitAsync(final IWebPreferencesRequest request)
+    {
+        LiteLoaderLogger.debug("WebPreferencesService is processing %s for %s asynchronously", request.getClass().getSimpleName(), request.getUUID());
+        
+        final IWebPreferencesTransport transport = this.transport;
+        final Executor executor = this.getAsyncExecutor();
+        CompletableFuture<Void> validated = CompletableFuture.completedFuture(null);
+
+        if (request.isValidationRequired() && transport.isValidationRequired())
+        {
+            // Session validation may need to contact both the service and Mojang, so don't do it on the calling thread
+            validated = CompletableFuture.runAsync(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    WebPreferencesService.this.validateRequest(request, transport);
+                }
+            }, executor);
+        }
+
+        return validated.thenCompose(new Function<Void, CompletionStage<IWebPreferencesResponse>>()
+        {
+            @Override
+            public CompletionStage<IWebPreferencesResponse> apply(Void result)
+            {
+                return transport.postAsync(request.getRequestURI(), request.getPostVars(), request.getTimeout());
+            }
+        }).handleAsync(new BiFunction<IWebPreferencesResponse, Throwable, IWebPreferencesResponse>()
+        {
+            @Override
+            public IWebPreferencesResponse apply(IWebPreferencesResponse response, Throwable th)
+            {
+                while (th instanceof CompletionException && th.getCause() != null)
+                {
+                    th = th.getCause();
+                }
+
+                try
+                {
+                    if (th == null)
+                    {
+                        return WebPreferencesService.this.handleResponse(request, response);
+                    }
+
+                    if (th instanceof InvalidRequestException)
+                    {
+                        request.getDelegate().onRequestFailed(request, th, ((InvalidRequestException)th).getReason());
+                        return null;
+                    }
+
+                    WebPreferencesService.this.handleFailure(request, th);
+                }
+                catch (Exception ex)
+                {
+                    WebPreferencesService.this.handleFailure(request, ex);
+                }
+
+                return null;
+            }
+        }, executor);
+    }
     
     private IWebPreferencesResponse beginProcessingRequest(IWebPreferencesRequest request) throws InvalidRequestException
     {
         LiteLoaderLogger.debug("WebPreferencesService is processing %s for %s", request.getClass().getSimpleName(), request.getUUID());
         
-        if (request.isValidationRequired())
+        IWebPreferencesTransport transport = this.transport;
+        this.validateRequest(request, transport);
+        return this.processRequest(request, transport);
+    }
+
+    private void validateRequest(IWebPreferencesRequest request, IWebPreferencesTransport transport) throws InvalidRequestException
+    {
+        if (request.isValidationRequired() && transport.isValidationRequired())
         {
             String requestClass = request.getClass().getSimpleName();
 
@@ -102,33 +208,64 @@ class WebPreferencesService implements IWebPreferencesService
                         "Validation is required for " + requestClass + " but no session was provided.");
             }
             
-            String serverId = this.getServerIdForRequest(request);
-
-            if (!this.registerServerConnection(session, serverId))
+            synchronized (this.validationLock)
             {
-                throw new InvalidRequestException(RequestFailureReason.NO_SESSION,
-                        "Validation is required for " + requestClass + " but no session was provided or session validation failed");
+                String serverId = this.getServerIdForRequest(request, transport);
+
+                if (!this.registerServerConnection(session, serverId))
+                {
+                    throw new InvalidRequestException(RequestFailureReason.NO_SESSION,
+                            "Validation is required for " + requestClass + " but no session was provided or session validation failed");
+                }
             }
         }
-
-        return this.processRequest(request);
     }
     
-    private IWebPreferencesResponse processRequest(IWebPreferencesRequest request)
+    private IWebPreferencesResponse processRequest(IWebPreferencesRequest request, IWebPreferencesTransport transport)
     {
         try
         {
-            String data = this.httpPost(request.getRequestURI(), request.getPostVars());
-            IWebPreferencesResponse response = WebPreferencesResponse.fromJson(data);
-            
-            LiteLoaderLogger.debug("Response: %s", response);
-            request.onReceivedResponse(response);
+            IWebPreferencesResponse response = transport.post(request.getRequestURI(), request.getPostVars(), request.getTimeout());
+            return this.handleResponse(request, response);
+        }
+        catch (Exception ex)
+        {
+            this.handleFailure(request, ex);
+        }
+
+        return null;
+    }
+
+    private IWebPreferencesResponse handleResponse(IWebPreferencesRequest request, IWebPreferencesResponse response)
+    {
+        LiteLoaderLogger.debug("Response: %s", response);
+
+        // An empty body, for example a 204 at the end of a long poll, parses to nothing
+        if (response == null)
+        {
+            throw new InvalidResponseException(RequestFailureReason.BAD_DATA, "The server returned an empty response");
+        }
+
+        for (IWebPreferencesServiceMonitor monitor : this.monitors)
+        {
+            monitor.onReceivedResponse(response);
+        }
+        request.onReceivedResponse(response);
 
-            request.getDelegate().onReceivedResponse(request, response);
-            return response;
+        for (IWebPreferencesServiceMonitor monitor : this.monitors)
+        {
+            monitor.onRequestSucceeded();
         }
-        catch (InvalidResponseException ex)
+
+        request.getDelegate().onReceivedResponse(request, response);
+        return response;
+    }
+
+    private void handleFailure(IWebPreferencesRequest request, Throwable th)
+    {
+        if (th instanceof InvalidResponseException)
         {
+            InvalidResponseException ex = (InvalidResponseException)th;
             request.getDelegate().onRequestFailed(request, ex, ex.getReason());
 
             for (IWebPreferencesServiceMonitor monitor : this.monitors)
@@ -136,27 +273,27 @@ class WebPreferencesService implements IWebPreferencesService
                 monitor.onRequestFailed(ex, ex.getReason().getSeverity());
             }
         }
-        catch (IOException ex)
+        else if (th instanceof IOException)
         {
-            request.getDelegate().onRequestFailed(request, ex, RequestFailureReason.SERVER_ERROR);
+            request.getDelegate().onRequestFailed(request, th, RequestFailureReason.SERVER_ERROR);
 
             for (IWebPreferencesServiceMonitor monitor : this.monitors)
             {
-                monitor.onRequestFailed(ex, RequestFailureReason.SERVER_ERROR.getSeverity());
+                monitor.onRequestFailed(th, RequestFailureReason.SERVER_ERROR.getSeverity());
             }
         }
-        catch (Exception ex)
+        else
         {
+            request.getDelegate().onRequestFailed(request, th, RequestFailureReason.UNKNOWN);
+
             for (IWebPreferencesServiceMonitor monitor : this.monitors)
             {
-                monitor.onRequestFailed(ex, RequestFailureReason.UNKNOWN.getSeverity());
+                monitor.onRequestFailed(th, RequestFailureReason.UNKNOWN.getSeverity());
             }
         }
-
-        return null;
     }
 
-    private String getServerIdForRequest(IWebPreferencesRequest request)
+    private String getServerIdForRequest(IWebPreferencesRequest request, IWebPreferencesTransport transport)
     {
         if (request.getDelegate().getSession() == null)
         {
@@ -170,7 +307,7 @@ class WebPreferencesService implements IWebPreferencesService
         {
             LiteLoaderLogger.info("Looking up server ID for " + hostName);
             WebPreferencesRequestKey keyRequest = new WebPreferencesRequestKey(this, this.session, hostName);
-            IWebPreferencesResponse response = this.processRequest(keyRequest);
+            IWebPreferencesResponse response = this.processRequest(keyRequest, transport);
             if (response == null || response.getServerId() == null)
             {
                 throw new InvalidRequestException(RequestFailureReason.SERVER_ERROR, "Could not retrieve server ID for " + hostName);
@@ -185,108 +322,31 @@ class WebPreferencesService implements IWebPreferencesService
         return serverId;
     }
     
-    public String httpPost(URI uri, Map<String, String> params) throws IOException
+    private Executor getAsyncExecutor()
     {
-        String query = this.buildQuery(params);
-        byte[] queryBytes = query.getBytes(Charsets.UTF_8);
-        
-        LiteLoaderLogger.debug("Connecting to " + uri);
-        HttpURLConnection http = (HttpURLConnection)uri.toURL().openConnection(this.proxy);
-        http.setConnectTimeout(WebPreferencesService.TIMEOUT_MSEC);
-        http.setReadTimeout(WebPreferencesService.TIMEOUT_MSEC);
-        http.setUseCaches(false);
-        http.setDoOutput(true);
-
-        http.addRequestProperty("Content-type", "application/x-www-form-urlencoded");
-        http.setRequestProperty("Content-Length", "" + queryBytes.length);
-
-        OutputStream outputStream = null;
-
-        try
+        if (this.asyncExecutor == null)
         {
-            outputStream = http.getOutputStream();
-            IOUtils.write(queryBytes, outputStream);
-        }
-        finally
-        {
-            IOUtils.closeQuietly(outputStream);
-        }
-
-        try
-        {
-            String debugMessages = http.getHeaderField("X-Debug-Message");
-            if (debugMessages != null)
+            synchronized (this)
             {
-                String[] messages = new Gson().fromJson(debugMessages, String[].class);
-                for (String message : messages)
+                if (this.asyncExecutor == null)
                 {
-                    LiteLoaderLogger.debug("[SERVER] %s", message);
+                    this.asyncExecutor = Executors.newFixedThreadPool(WebPreferencesService.ASYNC_THREADS, new ThreadFactory()
+                    {
+                        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable runnable)
+                        {
+                            Thread thread = new Thread(runnable, "WebPreferencesService async thread " + this.threadNumber.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
                 }
             }
         }
-        catch (Exception ex) {}
-
-        InputStream inputStream = null;
-
-        try
-        {
-            try
-            {
-                inputStream = http.getInputStream();
-                String response = IOUtils.toString(inputStream, Charsets.UTF_8);
-                return response;
-            }
-            catch (IOException ex)
-            {
-                IOUtils.closeQuietly(inputStream);
-                inputStream = http.getErrorStream();
-                if (inputStream == null)
-                {
-                    return this.formatErrorAsJson(http.getResponseCode() + " " + http.getResponseMessage(), ex.getMessage());
-                }
-
-                String response = IOUtils.toString(inputStream, Charsets.UTF_8);
-
-                String contentType = http.getHeaderField("Content-type");
-                if (!"application/json".equals(contentType))
-                {
-                    System.err.println(response);
-                    return this.formatErrorAsJson(http.getResponseCode() + " " + http.getResponseMessage(), "Invalid content type " + contentType);
-                }
-
-                return response;
-            }
-        }
-        finally
-        {
-            IOUtils.closeQuietly(inputStream);
-        }
-    }
-    
-    private String formatErrorAsJson(String response, String message)
-    {
-        return String.format("{\"response\":\"%s\",\"message\":\"%s\"}", response, message);
-    }
-    
-    private String buildQuery(Map<String, String> params)
-    {
-        StringBuilder sb = new StringBuilder();
-        
-        try
-        {
-            String separator = "";
-            for (Entry<String, String> postValue : params.entrySet())
-            {
-                sb.append(separator).append(postValue.getKey()).append("=").append(URLEncoder.encode(postValue.getValue(), "UTF-8"));
-                separator = "&";
-            }
-        }
-        catch (UnsupportedEncodingException ex)
-        {
-            ex.printStackTrace();
-        }
 
-        return sb.toString();
+        return this.asyncExecutor;
     }
     
     private boolean registerServerConnection(Session session, String serverId)
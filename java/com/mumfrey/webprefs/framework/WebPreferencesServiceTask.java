@@ -1,10 +1,17 @@
 package com.mumfrey.webprefs.framework;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import net.minecraft.util.Session;
 
 import com.mumfrey.webprefs.interfaces.IWebPreferencesClient;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesProvider;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesRequest;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesServiceDelegate;
 
 abstract class WebPreferencesServiceTask implements IWebPreferencesServiceDelegate
@@ -14,6 +21,30 @@ abstract class WebPreferencesServiceTask implements IWebPreferencesServiceDelega
     private final IWebPreferencesClient client;
 
     private IWebPreferencesRequest request;
+
+    private RequestPriority priority = RequestPriority.VISIBLE;
+
+    private long enqueueTime;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Set by whichever of the response, the failure or the deadline reaches
+     * the client first, so that the client is notified exactly once
+     */
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    /**
+     * Time (from {@link System#nanoTime}) by which this task must complete, 0
+     * if the task has no deadline
+     */
+    private volatile long deadline;
+
+    /**
+     * Completes when an asynchronous submission of this task completes or the
+     * task expires, whichever happens first
+     */
+    private volatile CompletableFuture<IWebPreferencesResponse> completion;
     
     WebPreferencesServiceTask(IWebPreferencesProvider provider, IWebPreferencesClient client)
     {
@@ -35,6 +66,130 @@ abstract class WebPreferencesServiceTask implements IWebPreferencesServiceDelega
     {
         this.request = request;
     }
+
+    public RequestPriority getPriority()
+    {
+        return this.priority;
+    }
+
+    long getEnqueueTime()
+    {
+        return this.enqueueTime;
+    }
+
+    void setPriority(RequestPriority priority, long enqueueTime)
+    {
+        this.priority = priority;
+        this.enqueueTime = enqueueTime;
+    }
+
+    /**
+     * Cancel this task, a cancelled task is not sent if it has not been sent
+     * already and its client is not notified of the outcome
+     */
+    public void cancel()
+    {
+        this.cancelled = true;
+    }
+
+    /**
+     * Cancel this task if it affects the specified UUID
+     *
+     * @return true if this task is now cancelled
+     */
+    boolean cancel(String uuid)
+    {
+        if (this.getUUIDs().contains(uuid))
+        {
+            this.cancel();
+        }
+
+        return this.isCancelled();
+    }
+
+    public boolean isCancelled()
+    {
+        return this.cancelled;
+    }
+
+    /**
+     * Claim the right to notify the client of the outcome of this task,
+     * delivery paths must call this before notifying the client
+     *
+     * @return true if the caller should notify the client, false if the task
+     *      is cancelled or the client was already notified
+     */
+    boolean settle()
+    {
+        return !this.cancelled && this.settled.compareAndSet(false, true);
+    }
+
+    long getDeadline()
+    {
+        return this.deadline;
+    }
+
+    void setDeadline(long deadline)
+    {
+        this.deadline = deadline;
+    }
+
+    boolean isExpired(long now)
+    {
+        return this.deadline != 0 && now - this.deadline >= 0;
+    }
+
+    /**
+     * Fail this task because its deadline has passed, the task is cancelled
+     * so that it is not sent if it is still queued. A response which arrives
+     * at the same time is delivered instead if it settles the task first.
+     */
+    void expire()
+    {
+        this.onRequestFailed(this.getRequest(), null, RequestFailureReason.TIMED_OUT);
+        this.cancel();
+
+        // Release anything waiting on an asynchronous submission which may never complete
+        CompletableFuture<IWebPreferencesResponse> completion = this.completion;
+        if (completion != null)
+        {
+            completion.completeExceptionally(new TimeoutException(this + " passed its deadline"));
+        }
+    }
+
+    void setCompletion(CompletableFuture<IWebPreferencesResponse> completion)
+    {
+        this.completion = completion;
+    }
+
+    /**
+     * Get the key used to index this task whilst it is queued, tasks with the
+     * same key can be merged. Returns null if this task cannot be merged.
+     */
+    String getMergeKey()
+    {
+        return null;
+    }
+
+    /**
+     * Merge the request of another queued task with the same merge key into
+     * this task
+     *
+     * @return true if the task was merged
+     */
+    boolean merge(WebPreferencesServiceTask other)
+    {
+        return false;
+    }
+
+    /**
+     * Get the UUIDs affected by this task, used to preserve ordering of tasks
+     * for the same UUID when tasks are processed concurrently
+     */
+    public Collection<String> getUUIDs()
+    {
+        return Collections.singleton(this.request.getUUID());
+    }
     
     @Override
     public String getHostName()
@@ -0,0 +1,174 @@
+package com.mumfrey.webprefs.framework;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
+import com.mumfrey.webprefs.exceptions.InvalidResponseException;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesProvider;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesRequest;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
+
+/**
+ * Task which wraps a number of coalesced GET tasks into a single multi-UUID
+ * request, and splits the batch response back out to the original tasks
+ */
+class WebPreferencesServiceTaskBatchGet extends WebPreferencesServiceTask
+{
+    private final List<WebPreferencesServiceTask> tasks;
+
+    private final Set<String> uuids = new HashSet<String>();
+
+    WebPreferencesServiceTaskBatchGet(IWebPreferencesProvider provider, List<WebPreferencesServiceTask> tasks)
+    {
+        super(provider, null);
+        this.tasks = new ArrayList<WebPreferencesServiceTask>(tasks);
+
+        long deadline = 0;
+        for (WebPreferencesServiceTask task : this.tasks)
+        {
+            this.uuids.addAll(task.getUUIDs());
+            if (task.getDeadline() != 0 && (deadline == 0 || task.getDeadline() - deadline < 0))
+            {
+                deadline = task.getDeadline();
+            }
+        }
+
+        // The batch must complete by the earliest deadline of its tasks
+        this.setDeadline(deadline);
+    }
+
+    public List<WebPreferencesServiceTask> getTasks()
+    {
+        return this.tasks;
+    }
+
+    @Override
+    public Collection<String> getUUIDs()
+    {
+        return this.uuids;
+    }
+
+    @Override
+    public void cancel()
+    {
+        for (WebPreferencesServiceTask task : this.tasks)
+        {
+            task.cancel();
+        }
+    }
+
+    @Override
+    boolean cancel(String uuid)
+    {
+        for (WebPreferencesServiceTask task : this.tasks)
+        {
+            task.cancel(uuid);
+        }
+
+        return this.isCancelled();
+    }
+
+    /**
+     * A batch is cancelled once all of its tasks are cancelled
+     */
+    @Override
+    public boolean isCancelled()
+    {
+        for (WebPreferencesServiceTask task : this.tasks)
+        {
+            if (!task.isCancelled())
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Rebuild the batch request without the tasks which have been cancelled
+     * since the batch was created. The UUIDs of this task are not changed
+     * since they may already have been claimed by the worker pool.
+     */
+    void removeCancelledTasks()
+    {
+        Map<String, Set<String>> keys = new HashMap<String, Set<String>>();
+        Map<String, String> versions = new HashMap<String, String>();
+        for (WebPreferencesServiceTask task : this.tasks)
+        {
+            if (!task.isCancelled())
+            {
+                WebPreferencesRequestGet taskRequest = (WebPreferencesRequestGet)task.getRequest();
+                keys.put(taskRequest.getUUID(), taskRequest.getKeys());
+                if (taskRequest.getVersion() != null)
+                {
+                    versions.put(taskRequest.getUUID(), taskRequest.getVersion());
+                }
+            }
+        }
+
+        WebPreferencesRequestMultiGet request = (WebPreferencesRequestMultiGet)this.getRequest();
+        if (!keys.isEmpty() && keys.size() < request.getUUIDs().size())
+        {
+            this.setRequest(new WebPreferencesRequestMultiGet(this, keys, versions, request.isPrivate()));
+        }
+    }
+
+    @Override
+    public void onReceivedResponse(IWebPreferencesRequest request, IWebPreferencesResponse response)
+    {
+        for (WebPreferencesServiceTask task : this.tasks)
+        {
+            if (task.isCancelled())
+            {
+                continue;
+            }
+
+            IWebPreferencesRequest taskRequest = task.getRequest();
+
+            try
+            {
+                IWebPreferencesResponse taskResponse = response.getBatchResponse(taskRequest.getUUID());
+                if (taskResponse == null)
+                {
+                    throw new InvalidResponseException(RequestFailureReason.BAD_DATA,
+                            "The server responded with an incomplete batch, missing UUID [" + taskRequest.getUUID() + "]");
+                }
+
+                taskRequest.onReceivedResponse(taskResponse);
+                task.onReceivedResponse(taskRequest, taskResponse);
+            }
+            catch (InvalidResponseException ex)
+            {
+                task.onRequestFailed(taskRequest, ex, ex.getReason());
+            }
+            catch (RuntimeException ex)
+            {
+                // Only fail this task, the other tasks in the batch may already have been delivered
+                LiteLoaderLogger.debug(ex, "Error delivering batch response for %s", taskRequest.getUUID());
+                task.onRequestFailed(taskRequest, ex, RequestFailureReason.UNKNOWN);
+            }
+        }
+    }
+
+    @Override
+    public void onRequestFailed(IWebPreferencesRequest request, Throwable th, RequestFailureReason reason)
+    {
+        for (WebPreferencesServiceTask task : this.tasks)
+        {
+            task.onRequestFailed(task.getRequest(), th, reason);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[%d tasks]", this.getClass().getSimpleName(), this.tasks.size());
+    }
+}
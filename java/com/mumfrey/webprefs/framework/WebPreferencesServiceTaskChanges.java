@@ -0,0 +1,50 @@
+package com.mumfrey.webprefs.framework;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import com.mumfrey.webprefs.interfaces.IWebPreferencesChangeListener;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesProvider;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesRequest;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
+
+class WebPreferencesServiceTaskChanges extends WebPreferencesServiceTask
+{
+    private final IWebPreferencesChangeListener listener;
+
+    WebPreferencesServiceTaskChanges(IWebPreferencesProvider provider, IWebPreferencesChangeListener listener)
+    {
+        super(provider, null);
+        this.listener = listener;
+    }
+
+    /**
+     * Changes requests only read state and do not need to be ordered with
+     * other requests for the same UUIDs
+     */
+    @Override
+    public Collection<String> getUUIDs()
+    {
+        return Collections.<String>emptySet();
+    }
+
+    @Override
+    public void onReceivedResponse(IWebPreferencesRequest request, IWebPreferencesResponse response)
+    {
+        if (this.settle())
+        {
+            Set<String> uuids = ((WebPreferencesRequestChanges)request).getUUIDs();
+            this.listener.onChangesReceived(uuids, response.getChanges(), response.getCursor());
+        }
+    }
+
+    @Override
+    public void onRequestFailed(IWebPreferencesRequest request, Throwable th, RequestFailureReason reason)
+    {
+        if (this.settle())
+        {
+            this.listener.onChangesRequestFailed(((WebPreferencesRequestChanges)request).getUUIDs(), reason);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.mumfrey.webprefs.framework;
 
+import java.util.Collections;
+import java.util.Map;
+
 import com.mumfrey.webprefs.interfaces.IWebPreferencesClient;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesProvider;
 import com.mumfrey.webprefs.interfaces.IWebPreferencesRequest;
@@ -12,13 +15,40 @@ class WebPreferencesServiceTaskGet extends WebPreferencesServiceTask
         super(provider, client);
     }
     
+    @Override
+    String getMergeKey()
+    {
+        WebPreferencesRequestGet request = (WebPreferencesRequestGet)this.getRequest();
+        return String.format("get:%s:%s", request.isPrivate() ? "private" : "public", request.getUUID());
+    }
+
+    @Override
+    boolean merge(WebPreferencesServiceTask other)
+    {
+        if (!(other instanceof WebPreferencesServiceTaskGet) || other.getClient() != this.getClient())
+        {
+            return false;
+        }
+
+        WebPreferencesRequestGet otherRequest = (WebPreferencesRequestGet)other.getRequest();
+        ((WebPreferencesRequestGet)this.getRequest()).addKeys(otherRequest.getKeys(), otherRequest.getVersion());
+        return true;
+    }
+
     @Override
     public void onReceivedResponse(IWebPreferencesRequest request, IWebPreferencesResponse response)
     {
         IWebPreferencesClient client = this.getClient();
-        if (client != null && response.hasValues())
+        if (client != null && this.settle())
         {
-            client.onGetRequestSuccess(response.getUUID(), response.getValues());
+            if (response.isNotModified())
+            {
+                client.onGetRequestNotModified(response.getUUID(), request.getKeys(), response.getVersion());
+                return;
+            }
+
+            Map<String, String> values = response.hasValues() ? response.getValues() : Collections.<String, String>emptyMap();
+            client.onGetRequestSuccess(response.getUUID(), request.getKeys(), values, response.getVersion());
         }
     }
 
@@ -26,7 +56,7 @@ class WebPreferencesServiceTaskGet extends WebPreferencesServiceTask
     public void onRequestFailed(IWebPreferencesRequest request, Throwable th, RequestFailureReason reason)
     {
         IWebPreferencesClient client = this.getClient();
-        if (client != null)
+        if (client != null && this.settle())
         {
             client.onGetRequestFailed(request.getUUID(), request.getKeys(), reason);
         }
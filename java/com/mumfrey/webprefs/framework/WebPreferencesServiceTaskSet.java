@@ -12,11 +12,30 @@ class WebPreferencesServiceTaskSet extends WebPreferencesServiceTask
         super(provider, client);
     }
 
+    @Override
+    String getMergeKey()
+    {
+        WebPreferencesRequestSet request = (WebPreferencesRequestSet)this.getRequest();
+        return String.format("set:%s:%s", request.isPrivate() ? "private" : "public", request.getUUID());
+    }
+
+    @Override
+    boolean merge(WebPreferencesServiceTask other)
+    {
+        if (!(other instanceof WebPreferencesServiceTaskSet) || other.getClient() != this.getClient())
+        {
+            return false;
+        }
+
+        ((WebPreferencesRequestSet)this.getRequest()).putValues(((WebPreferencesRequestSet)other.getRequest()).getMap());
+        return true;
+    }
+
     @Override
     public void onReceivedResponse(IWebPreferencesRequest request, IWebPreferencesResponse response)
     {
         IWebPreferencesClient client = this.getClient();
-        if (client != null && response.hasSetters())
+        if (client != null && this.settle() && response.hasSetters())
         {
             client.onSetRequestSuccess(response.getUUID(), response.getSetters());
         }
@@ -26,7 +45,7 @@ class WebPreferencesServiceTaskSet extends WebPreferencesServiceTask
     public void onRequestFailed(IWebPreferencesRequest request, Throwable th, RequestFailureReason reason)
     {
         IWebPreferencesClient client = this.getClient();
-        if (client != null)
+        if (client != null && this.settle())
         {
             client.onSetRequestFailed(request.getUUID(), request.getKeys(), reason);
         }
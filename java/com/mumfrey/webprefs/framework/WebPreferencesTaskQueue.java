@@ -0,0 +1,516 @@
+package com.mumfrey.webprefs.framework;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Predicate;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesCapacityListener;
+
+/**
+ * Bounded priority queue for provider tasks. Each priority has its own FIFO
+ * lane and the head of each lane is ranked by its enqueue time plus a fixed
+ * handicap per priority level, so a waiting task is eventually dispatched
+ * ahead of newer tasks with a higher priority.
+ *
+ * <p>Queued tasks are indexed by their merge key (kind, privacy and UUID) so
+ * that a new task can be merged into an equivalent task which has not been
+ * sent yet, instead of occupying another slot in the queue.</p>
+ *
+ * <p>When the queue is full new tasks are handled according to the
+ * {@link OverflowPolicy}, and submitters which were turned away can register a
+ * capacity listener which is notified once the queue drains below its
+ * low-water mark.</p>
+ *
+ * @author Adam Mummery-Smith
+ */
+class WebPreferencesTaskQueue
+{
+    /**
+     * Receives tasks which were dropped from the queue to make room for newer
+     * tasks, called without the queue lock held
+     */
+    interface Listener
+    {
+        public abstract void onTaskDropped(WebPreferencesServiceTask task);
+    }
+
+    /**
+     * Time a task must wait before it is considered equal to a task one
+     * priority level higher
+     */
+    private static final long PRIORITY_AGING_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = this.lock.newCondition();
+
+    private final Condition notFull = this.lock.newCondition();
+
+    private final Map<RequestPriority, Deque<WebPreferencesServiceTask>> lanes
+            = new EnumMap<RequestPriority, Deque<WebPreferencesServiceTask>>(RequestPriority.class);
+
+    /**
+     * Queued tasks by merge key
+     */
+    private final Map<String, WebPreferencesServiceTask> pending = new HashMap<String, WebPreferencesServiceTask>();
+
+    /**
+     * Most recently queued task for each UUID, a task is only eligible for
+     * merging if no later task for the same UUID has been queued
+     */
+    private final Map<String, WebPreferencesServiceTask> latest = new HashMap<String, WebPreferencesServiceTask>();
+
+    /**
+     * One-shot listeners waiting for the queue to drain
+     */
+    private final List<IWebPreferencesCapacityListener> capacityListeners = new ArrayList<IWebPreferencesCapacityListener>();
+
+    private final Listener listener;
+
+    private final int capacity;
+
+    /**
+     * Capacity listeners are notified when the queue drains to this size
+     */
+    private final int lowWaterMark;
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+
+    private volatile long blockTimeoutNanos;
+
+    private int count;
+
+    private long rejectedCount;
+
+    private long droppedCount;
+
+    WebPreferencesTaskQueue(int capacity, Listener listener)
+    {
+        this.capacity = capacity;
+        this.lowWaterMark = capacity / 2;
+        this.listener = listener;
+
+        for (RequestPriority priority : RequestPriority.values())
+        {
+            this.lanes.put(priority, new ArrayDeque<WebPreferencesServiceTask>());
+        }
+    }
+
+    int getCapacity()
+    {
+        return this.capacity;
+    }
+
+    OverflowPolicy getOverflowPolicy()
+    {
+        return this.overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy policy to apply when the queue is full
+     * @param blockTimeout time to block for when using
+     *      {@link OverflowPolicy#BLOCK}
+     * @param unit time unit for blockTimeout
+     */
+    void setOverflowPolicy(OverflowPolicy overflowPolicy, long blockTimeout, TimeUnit unit)
+    {
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = unit.toNanos(Math.max(0L, blockTimeout));
+    }
+
+    long getRejectedCount()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.rejectedCount;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    long getDroppedCount()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.droppedCount;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    int size()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.count;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return this.size() == 0;
+    }
+
+    boolean offer(WebPreferencesServiceTask task, RequestPriority priority)
+    {
+        WebPreferencesServiceTask dropped = null;
+
+        this.lock.lock();
+        try
+        {
+            long now = System.nanoTime();
+            if (this.tryMerge(task, priority, now))
+            {
+                return true;
+            }
+
+            if (this.count >= this.capacity)
+            {
+                OverflowPolicy overflowPolicy = this.overflowPolicy;
+                if (overflowPolicy == OverflowPolicy.BLOCK && this.awaitNotFull())
+                {
+                    // An equivalent task may have been queued whilst we were waiting
+                    now = System.nanoTime();
+                    if (this.tryMerge(task, priority, now))
+                    {
+                        return true;
+                    }
+                }
+                else if (overflowPolicy == OverflowPolicy.DROP_OLDEST_GET)
+                {
+                    dropped = this.dropOldestGet(priority);
+                }
+
+                if (this.count >= this.capacity)
+                {
+                    this.rejectedCount++;
+                    return false;
+                }
+            }
+
+            task.setPriority(priority, now);
+            this.lanes.get(priority).addLast(task);
+            this.count++;
+            this.index(task);
+            this.notEmpty.signal();
+            return true;
+        }
+        finally
+        {
+            this.lock.unlock();
+
+            if (dropped != null)
+            {
+                this.listener.onTaskDropped(dropped);
+            }
+        }
+    }
+
+    /**
+     * Wait for space in the queue for up to the configured block timeout,
+     * caller must hold the lock
+     *
+     * @return true if space became available
+     */
+    private boolean awaitNotFull()
+    {
+        long remaining = this.blockTimeoutNanos;
+
+        try
+        {
+            while (this.count >= this.capacity && remaining > 0)
+            {
+                remaining = this.notFull.awaitNanos(remaining);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        return this.count < this.capacity;
+    }
+
+    /**
+     * Remove the oldest queued GET with the same or lower priority than the
+     * specified priority, lowest priorities first. Caller must hold the lock.
+     *
+     * @return the removed task or null if there was no such task
+     */
+    private WebPreferencesServiceTask dropOldestGet(RequestPriority priority)
+    {
+        RequestPriority[] priorities = RequestPriority.values();
+        for (int ordinal = priorities.length - 1; ordinal >= priority.ordinal(); ordinal--)
+        {
+            for (Iterator<WebPreferencesServiceTask> iter = this.lanes.get(priorities[ordinal]).iterator(); iter.hasNext();)
+            {
+                WebPreferencesServiceTask task = iter.next();
+                if (task instanceof WebPreferencesServiceTaskGet)
+                {
+                    iter.remove();
+                    this.unindex(task);
+                    this.count--;
+                    this.droppedCount++;
+                    return task;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Register a one-shot listener to be notified when the queue drains below
+     * its low-water mark
+     *
+     * @return true if the listener was registered, false if the queue is
+     *      already below the low-water mark in which case the listener is not
+     *      registered
+     */
+    boolean addCapacityListener(IWebPreferencesCapacityListener listener)
+    {
+        this.lock.lock();
+        try
+        {
+            if (this.count <= this.lowWaterMark)
+            {
+                return false;
+            }
+
+            if (!this.capacityListeners.contains(listener))
+            {
+                this.capacityListeners.add(listener);
+            }
+
+            return true;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Called after tasks are removed, caller must hold the lock
+     *
+     * @return capacity listeners to notify once the lock is released
+     */
+    private List<IWebPreferencesCapacityListener> onTasksRemoved()
+    {
+        this.notFull.signalAll();
+
+        if (this.capacityListeners.isEmpty() || this.count > this.lowWaterMark)
+        {
+            return Collections.<IWebPreferencesCapacityListener>emptyList();
+        }
+
+        List<IWebPreferencesCapacityListener> listeners = new ArrayList<IWebPreferencesCapacityListener>(this.capacityListeners);
+        this.capacityListeners.clear();
+        return listeners;
+    }
+
+    private void notifyCapacityListeners(List<IWebPreferencesCapacityListener> listeners)
+    {
+        for (IWebPreferencesCapacityListener listener : listeners)
+        {
+            listener.onCapacityAvailable();
+        }
+    }
+
+    /**
+     * Attempt to merge the supplied task into a queued task with the same merge
+     * key, caller must hold the lock
+     */
+    private boolean tryMerge(WebPreferencesServiceTask task, RequestPriority priority, long now)
+    {
+        String mergeKey = task.getMergeKey();
+        WebPreferencesServiceTask queued = mergeKey != null ? this.pending.get(mergeKey) : null;
+        if (queued == null || this.latest.get(task.getRequest().getUUID()) != queued || !queued.merge(task))
+        {
+            return false;
+        }
+
+        // Promote the merged task if the new task would have been dispatched sooner
+        RequestPriority queuedPriority = queued.getPriority();
+        if (priority.ordinal() < queuedPriority.ordinal()
+                && WebPreferencesTaskQueue.rank(priority, now) - WebPreferencesTaskQueue.rank(queuedPriority, queued.getEnqueueTime()) < 0)
+        {
+            this.lanes.get(queuedPriority).remove(queued);
+            queued.setPriority(priority, now);
+            this.lanes.get(priority).addLast(queued);
+        }
+
+        return true;
+    }
+
+    private void index(WebPreferencesServiceTask task)
+    {
+        String mergeKey = task.getMergeKey();
+        if (mergeKey != null)
+        {
+            this.pending.put(mergeKey, task);
+            this.latest.put(task.getRequest().getUUID(), task);
+        }
+    }
+
+    private void unindex(WebPreferencesServiceTask task)
+    {
+        String mergeKey = task.getMergeKey();
+        if (mergeKey != null)
+        {
+            if (this.pending.get(mergeKey) == task)
+            {
+                this.pending.remove(mergeKey);
+            }
+
+            if (this.latest.get(task.getRequest().getUUID()) == task)
+            {
+                this.latest.remove(task.getRequest().getUUID());
+            }
+        }
+    }
+
+    private static long rank(RequestPriority priority, long enqueueTime)
+    {
+        return enqueueTime + priority.ordinal() * WebPreferencesTaskQueue.PRIORITY_AGING_NANOS;
+    }
+
+    WebPreferencesServiceTask take() throws InterruptedException
+    {
+        List<IWebPreferencesCapacityListener> listeners = null;
+
+        this.lock.lockInterruptibly();
+        try
+        {
+            while (this.count == 0)
+            {
+                this.notEmpty.await();
+            }
+
+            Deque<WebPreferencesServiceTask> next = null;
+            long nextRank = 0;
+
+            for (RequestPriority priority : RequestPriority.values())
+            {
+                Deque<WebPreferencesServiceTask> lane = this.lanes.get(priority);
+                WebPreferencesServiceTask head = lane.peekFirst();
+                if (head != null)
+                {
+                    long rank = WebPreferencesTaskQueue.rank(priority, head.getEnqueueTime());
+                    if (next == null || rank - nextRank < 0)
+                    {
+                        next = lane;
+                        nextRank = rank;
+                    }
+                }
+            }
+
+            WebPreferencesServiceTask task = next.pollFirst();
+            this.count--;
+            this.unindex(task);
+            listeners = this.onTasksRemoved();
+            return task;
+        }
+        finally
+        {
+            this.lock.unlock();
+
+            if (listeners != null)
+            {
+                this.notifyCapacityListeners(listeners);
+            }
+        }
+    }
+
+    /**
+     * Remove all queued tasks matching the supplied predicate. Tasks are visited
+     * in priority order and in FIFO order within each priority.
+     *
+     * @return number of tasks removed
+     */
+    int removeIf(Predicate<WebPreferencesServiceTask> predicate)
+    {
+        List<IWebPreferencesCapacityListener> listeners = null;
+
+        this.lock.lock();
+        try
+        {
+            int removed = 0;
+            for (Deque<WebPreferencesServiceTask> lane : this.lanes.values())
+            {
+                for (Iterator<WebPreferencesServiceTask> iter = lane.iterator(); iter.hasNext();)
+                {
+                    WebPreferencesServiceTask task = iter.next();
+                    if (predicate.apply(task))
+                    {
+                        iter.remove();
+                        this.unindex(task);
+                        removed++;
+                    }
+                }
+            }
+
+            this.count -= removed;
+            listeners = this.onTasksRemoved();
+            return removed;
+        }
+        finally
+        {
+            this.lock.unlock();
+
+            if (listeners != null)
+            {
+                this.notifyCapacityListeners(listeners);
+            }
+        }
+    }
+
+    void clear()
+    {
+        List<IWebPreferencesCapacityListener> listeners = null;
+
+        this.lock.lock();
+        try
+        {
+            for (Deque<WebPreferencesServiceTask> lane : this.lanes.values())
+            {
+                lane.clear();
+            }
+
+            this.pending.clear();
+            this.latest.clear();
+            this.count = 0;
+            listeners = this.onTasksRemoved();
+        }
+        finally
+        {
+            this.lock.unlock();
+
+            if (listeners != null)
+            {
+                this.notifyCapacityListeners(listeners);
+            }
+        }
+    }
+}
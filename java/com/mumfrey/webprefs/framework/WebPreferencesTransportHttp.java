@@ -0,0 +1,290 @@
+package com.mumfrey.webprefs.framework;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesTransport;
+
+/**
+ * Blocking HTTP transport using {@link HttpURLConnection}, asynchronous posts
+ * are performed on a small pool of blocking threads
+ *
+ * @author Adam Mummery-Smith
+ */
+public class WebPreferencesTransportHttp implements IWebPreferencesTransport
+{
+    protected static final int TIMEOUT_MSEC = 5000;
+
+    /**
+     * Number of threads used to perform blocking posts for
+     * {@link #postAsync}
+     */
+    private static final int ASYNC_THREADS = 2;
+
+    protected final Proxy proxy;
+
+    private volatile ExecutorService asyncExecutor;
+
+    public WebPreferencesTransportHttp(Proxy proxy)
+    {
+        this.proxy = proxy != null ? proxy : Proxy.NO_PROXY;
+    }
+
+    @Override
+    public boolean isValidationRequired()
+    {
+        return true;
+    }
+
+    @Override
+    public IWebPreferencesResponse post(URI uri, Map<String, String> params) throws IOException
+    {
+        return this.httpPost(uri, params, 0);
+    }
+
+    @Override
+    public IWebPreferencesResponse post(URI uri, Map<String, String> params, int timeout) throws IOException
+    {
+        return this.httpPost(uri, params, timeout);
+    }
+
+    @Override
+    public CompletableFuture<IWebPreferencesResponse> postAsync(URI uri, Map<String, String> params)
+    {
+        return this.postAsync(uri, params, 0);
+    }
+
+    @Override
+    public CompletableFuture<IWebPreferencesResponse> postAsync(final URI uri, final Map<String, String> params, final int timeout)
+    {
+        return CompletableFuture.supplyAsync(new Supplier<IWebPreferencesResponse>()
+        {
+            @Override
+            public IWebPreferencesResponse get()
+            {
+                try
+                {
+                    return WebPreferencesTransportHttp.this.post(uri, params, timeout);
+                }
+                catch (IOException ex)
+                {
+                    throw new CompletionException(ex);
+                }
+            }
+        }, this.getAsyncExecutor());
+    }
+
+    protected IWebPreferencesResponse httpPost(URI uri, Map<String, String> params, int timeout) throws IOException
+    {
+        String query = this.buildQuery(params);
+        byte[] queryBytes = query.getBytes(Charsets.UTF_8);
+
+        LiteLoaderLogger.debug("Connecting to " + uri);
+        HttpURLConnection http = (HttpURLConnection)uri.toURL().openConnection(this.proxy);
+        http.setConnectTimeout(WebPreferencesTransportHttp.TIMEOUT_MSEC);
+        http.setReadTimeout(timeout > 0 ? timeout : WebPreferencesTransportHttp.TIMEOUT_MSEC);
+        http.setUseCaches(false);
+        http.setDoOutput(true);
+
+        http.addRequestProperty("Content-type", "application/x-www-form-urlencoded");
+        http.setRequestProperty("Content-Length", "" + queryBytes.length);
+
+        OutputStream outputStream = null;
+
+        try
+        {
+            outputStream = http.getOutputStream();
+            IOUtils.write(queryBytes, outputStream);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(outputStream);
+        }
+
+        this.logDebugMessages(http.getHeaderField("X-Debug-Message"));
+
+        String retryAfter = http.getHeaderField("Retry-After");
+        InputStream inputStream = null;
+
+        try
+        {
+            if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+            {
+                return WebPreferencesResponse.fromJson(this.formatNotModifiedAsJson(params), retryAfter);
+            }
+
+            try
+            {
+                inputStream = http.getInputStream();
+                String response = IOUtils.toString(inputStream, Charsets.UTF_8);
+                return WebPreferencesResponse.fromJson(response, retryAfter);
+            }
+            catch (IOException ex)
+            {
+                IOUtils.closeQuietly(inputStream);
+                inputStream = http.getErrorStream();
+                if (inputStream == null)
+                {
+                    return WebPreferencesResponse.fromJson(this.formatErrorAsJson(http.getResponseCode() + " " + http.getResponseMessage(),
+                            ex.getMessage()), retryAfter);
+                }
+
+                String response = IOUtils.toString(inputStream, Charsets.UTF_8);
+
+                String contentType = http.getHeaderField("Content-type");
+                if (!"application/json".equals(contentType))
+                {
+                    LiteLoaderLogger.debug("Server returned an unexpected %s response: %s", contentType, response);
+                    return WebPreferencesResponse.fromJson(this.formatErrorAsJson(http.getResponseCode() + " " + http.getResponseMessage(),
+                            "Invalid content type " + contentType), retryAfter);
+                }
+
+                return WebPreferencesResponse.fromJson(response, retryAfter);
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    protected void logDebugMessages(String debugMessages)
+    {
+        try
+        {
+            if (debugMessages != null)
+            {
+                String[] messages = new Gson().fromJson(debugMessages, String[].class);
+                for (String message : messages)
+                {
+                    LiteLoaderLogger.debug("[SERVER] %s", message);
+                }
+            }
+        }
+        catch (Exception ex) {}
+    }
+
+    protected Executor getAsyncExecutor()
+    {
+        if (this.asyncExecutor == null)
+        {
+            synchronized (this)
+            {
+                if (this.asyncExecutor == null)
+                {
+                    this.asyncExecutor = Executors.newFixedThreadPool(WebPreferencesTransportHttp.ASYNC_THREADS, new ThreadFactory()
+                    {
+                        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable runnable)
+                        {
+                            Thread thread = new Thread(runnable, "WebPreferencesTransport blocking thread " + this.threadNumber.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+
+        return this.asyncExecutor;
+    }
+
+    protected String formatErrorAsJson(String response, String message)
+    {
+        return String.format("{\"response\":\"%s\",\"message\":\"%s\"}", response, message);
+    }
+
+    /**
+     * An HTTP 304 reply to a conditional request has no body, so build the
+     * equivalent response for the UUID the request was made for. For a batch
+     * request every UUID in the batch is reported as not modified.
+     */
+    protected String formatNotModifiedAsJson(Map<String, String> params)
+    {
+        JsonObject response = WebPreferencesTransportHttp.notModified(params.get("i"));
+
+        try
+        {
+            JsonObject request = params.containsKey("j") ? new JsonParser().parse(params.get("j")).getAsJsonObject() : null;
+            if (request != null && request.has("mget"))
+            {
+                JsonObject batch = new JsonObject();
+                for (Entry<String, JsonElement> entry : request.getAsJsonObject("mget").entrySet())
+                {
+                    batch.add(entry.getKey(), WebPreferencesTransportHttp.notModified(entry.getKey()));
+                }
+                response.add("batch", batch);
+            }
+        }
+        catch (JsonParseException ex)
+        {
+            // Not a batch
+        }
+        catch (IllegalStateException ex)
+        {
+            // Not a batch
+        }
+
+        return response.toString();
+    }
+
+    private static JsonObject notModified(String uuid)
+    {
+        JsonObject response = new JsonObject();
+        response.addProperty("response", "304 Not Modified");
+        if (uuid != null)
+        {
+            response.addProperty("uuid", uuid);
+        }
+        return response;
+    }
+
+    protected String buildQuery(Map<String, String> params)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        try
+        {
+            String separator = "";
+            for (Entry<String, String> postValue : params.entrySet())
+            {
+                sb.append(separator).append(postValue.getKey()).append("=").append(URLEncoder.encode(postValue.getValue(), "UTF-8"));
+                separator = "&";
+            }
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            ex.printStackTrace();
+        }
+
+        return sb.toString();
+    }
+}
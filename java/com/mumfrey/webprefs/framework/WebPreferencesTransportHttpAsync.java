@@ -0,0 +1,111 @@
+package com.mumfrey.webprefs.framework;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import com.google.common.base.Charsets;
+import com.mumfrey.liteloader.util.log.LiteLoaderLogger;
+import com.mumfrey.webprefs.framework.WebPreferencesHttpClient.HttpResponse;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
+
+/**
+ * HTTP transport which performs asynchronous posts using the non-blocking
+ * {@link WebPreferencesHttpClient}. Blocking posts, and asynchronous posts
+ * which the client does not support (eg. via a SOCKS proxy) fall back to the
+ * blocking transport.
+ *
+ * @author Adam Mummery-Smith
+ */
+public class WebPreferencesTransportHttpAsync extends WebPreferencesTransportHttp
+{
+    private volatile WebPreferencesHttpClient httpClient;
+
+    public WebPreferencesTransportHttpAsync(Proxy proxy)
+    {
+        super(proxy);
+    }
+
+    @Override
+    public CompletableFuture<IWebPreferencesResponse> postAsync(URI uri, Map<String, String> params)
+    {
+        return this.postAsync(uri, params, 0);
+    }
+
+    @Override
+    public CompletableFuture<IWebPreferencesResponse> postAsync(URI uri, final Map<String, String> params, int timeout)
+    {
+        WebPreferencesHttpClient httpClient = WebPreferencesHttpClient.supports(this.proxy, uri) ? this.getHttpClient() : null;
+        if (httpClient == null)
+        {
+            return super.postAsync(uri, params, timeout);
+        }
+
+        LiteLoaderLogger.debug("Connecting to " + uri);
+        byte[] queryBytes = this.buildQuery(params).getBytes(Charsets.UTF_8);
+        return httpClient.post(uri, queryBytes, "application/x-www-form-urlencoded", timeout).thenApply(new Function<HttpResponse, IWebPreferencesResponse>()
+        {
+            @Override
+            public IWebPreferencesResponse apply(HttpResponse http)
+            {
+                return WebPreferencesResponse.fromJson(WebPreferencesTransportHttpAsync.this.readResponse(http, params), http.getHeader("Retry-After"));
+            }
+        });
+    }
+
+    private String readResponse(HttpResponse http, Map<String, String> params)
+    {
+        this.logDebugMessages(http.getHeader("X-Debug-Message"));
+
+        if (http.getStatus() == 304)
+        {
+            return this.formatNotModifiedAsJson(params);
+        }
+
+        if (http.getStatus() / 100 == 2)
+        {
+            return http.getBody();
+        }
+
+        if (http.getBody().isEmpty())
+        {
+            return this.formatErrorAsJson(http.getStatus() + " " + http.getMessage(), "The server returned HTTP response code: " + http.getStatus());
+        }
+
+        String contentType = http.getHeader("Content-type");
+        if (!"application/json".equals(contentType))
+        {
+            LiteLoaderLogger.debug("Server returned an unexpected %s response: %s", contentType, http.getBody());
+            return this.formatErrorAsJson(http.getStatus() + " " + http.getMessage(), "Invalid content type " + contentType);
+        }
+
+        return http.getBody();
+    }
+
+    private WebPreferencesHttpClient getHttpClient()
+    {
+        if (this.httpClient == null)
+        {
+            synchronized (this)
+            {
+                if (this.httpClient == null)
+                {
+                    try
+                    {
+                        this.httpClient = new WebPreferencesHttpClient(this.proxy, WebPreferencesTransportHttp.TIMEOUT_MSEC);
+                    }
+                    catch (IOException ex)
+                    {
+                        LiteLoaderLogger.warning("Could not start the asynchronous HTTP client: %s", ex.getMessage());
+                        return null;
+                    }
+                }
+            }
+        }
+
+        return this.httpClient;
+    }
+}
@@ -0,0 +1,324 @@
+package com.mumfrey.webprefs.framework;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
+import com.mumfrey.webprefs.interfaces.IWebPreferencesTransport;
+
+/**
+ * In-process transport backed by an in-memory store. Requests are answered
+ * immediately on the calling thread and no session validation is performed,
+ * which makes this transport suitable for exercising the provider pipeline
+ * without network cost, or for hosts whose preferences never leave the
+ * client. Responses are serialised and parsed in the same way as those from a
+ * remote host.
+ *
+ * @author Adam Mummery-Smith
+ */
+public class WebPreferencesTransportLoopback implements IWebPreferencesTransport
+{
+    private static final Gson gson = new Gson();
+
+    /**
+     * Stored values by UUID
+     */
+    private final Map<String, Map<String, String>> publicStore = new ConcurrentHashMap<String, Map<String, String>>();
+
+    private final Map<String, Map<String, String>> privateStore = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /**
+     * Version of each stored collection, taken from a single sequence which
+     * is advanced whenever a value is set so that versions double as change
+     * cursors
+     */
+    private final Map<String, Long> versions = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    @Override
+    public boolean isValidationRequired()
+    {
+        return false;
+    }
+
+    /**
+     * Get the total number of requests handled by this transport
+     */
+    public long getRequestCount()
+    {
+        return this.requestCount.get();
+    }
+
+    /**
+     * Get a stored value directly, returns null if the value is not set
+     */
+    public String get(String uuid, String key, boolean isPrivate)
+    {
+        Map<String, String> values = this.getStore(isPrivate).get(uuid);
+        if (values == null)
+        {
+            return null;
+        }
+
+        synchronized (values)
+        {
+            return values.get(key);
+        }
+    }
+
+    /**
+     * Store a value directly, for example to seed the store before a test
+     */
+    public void put(String uuid, String key, String value, boolean isPrivate)
+    {
+        Map<String, String> values = this.getValues(uuid, isPrivate);
+        synchronized (values)
+        {
+            WebPreferencesTransportLoopback.store(values, key, value);
+            this.bumpVersion(uuid, isPrivate);
+        }
+    }
+
+    public void clear()
+    {
+        this.publicStore.clear();
+        this.privateStore.clear();
+        this.versions.clear();
+        this.sequence.set(0L);
+    }
+
+    @Override
+    public IWebPreferencesResponse post(URI uri, Map<String, String> params)
+    {
+        this.requestCount.incrementAndGet();
+
+        Map<String, Object> response = new HashMap<String, Object>();
+        String uuid = params.get("i");
+
+        try
+        {
+            JsonObject json = params.containsKey("j") ? new JsonParser().parse(params.get("j")).getAsJsonObject() : new JsonObject();
+            boolean isPrivate = json.has("private") && json.get("private").getAsBoolean();
+            String path = uri.getPath();
+
+            response.put("response", "200 OK");
+            response.put("uuid", uuid);
+
+            if ("/key".equals(path))
+            {
+                response.put("serverid", "loopback");
+            }
+            else if ("/get".equals(path))
+            {
+                String version = json.has("ver") ? json.get("ver").getAsString() : null;
+                this.putValues(response, uuid, isPrivate, json.getAsJsonArray("get"), version);
+            }
+            else if ("/mget".equals(path))
+            {
+                Map<String, Object> batch = new HashMap<String, Object>();
+                JsonObject versions = json.has("mver") ? json.getAsJsonObject("mver") : new JsonObject();
+                for (Entry<String, JsonElement> entry : json.getAsJsonObject("mget").entrySet())
+                {
+                    Map<String, Object> batchResponse = new HashMap<String, Object>();
+                    String version = versions.has(entry.getKey()) ? versions.get(entry.getKey()).getAsString() : null;
+                    this.putValues(batchResponse, entry.getKey(), isPrivate, entry.getValue().getAsJsonArray(), version);
+                    batch.put(entry.getKey(), batchResponse);
+                }
+                response.put("batch", batch);
+            }
+            else if ("/changes".equals(path))
+            {
+                long since = json.has("since") ? Long.parseLong(json.get("since").getAsString()) : -1L;
+                response.put("cursor", String.valueOf(this.sequence.get()));
+                List<String> changed = new ArrayList<String>();
+                for (JsonElement element : json.getAsJsonArray("changes"))
+                {
+                    if (since < 0 || Long.parseLong(this.getVersion(element.getAsString(), false)) > since)
+                    {
+                        changed.add(element.getAsString());
+                    }
+                }
+                response.put("changed", changed);
+            }
+            else if ("/subscribe".equals(path))
+            {
+                // Changed collections are pushed in full, and the request is answered without being held
+                long since = json.has("since") ? Long.parseLong(json.get("since").getAsString()) : -1L;
+                response.put("cursor", String.valueOf(this.sequence.get()));
+                Map<String, Map<String, String>> pushed = new HashMap<String, Map<String, String>>();
+                for (JsonElement element : json.getAsJsonArray("subscribe"))
+                {
+                    String subscribed = element.getAsString();
+                    Map<String, String> values = this.publicStore.get(subscribed);
+                    if (since >= 0 && values != null && Long.parseLong(this.getVersion(subscribed, false)) > since)
+                    {
+                        synchronized (values)
+                        {
+                            pushed.put(subscribed, new HashMap<String, String>(values));
+                        }
+                    }
+                }
+                response.put("push", pushed);
+            }
+            else if ("/set".equals(path))
+            {
+                List<String> setters = new ArrayList<String>();
+                Map<String, String> values = this.getValues(uuid, isPrivate);
+                synchronized (values)
+                {
+                    for (Entry<String, JsonElement> entry : json.getAsJsonObject("set").entrySet())
+                    {
+                        WebPreferencesTransportLoopback.store(values, entry.getKey(), entry.getValue().getAsString());
+                        setters.add(entry.getKey());
+                    }
+                    this.bumpVersion(uuid, isPrivate);
+                }
+                response.put("set", setters);
+            }
+            else
+            {
+                response.put("response", "404 Not Found");
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            response.put("response", "400 Bad Request");
+            response.put("message", ex.getMessage());
+        }
+
+        return WebPreferencesResponse.fromJson(WebPreferencesTransportLoopback.gson.toJson(response));
+    }
+
+    @Override
+    public IWebPreferencesResponse post(URI uri, Map<String, String> params, int timeout)
+    {
+        return this.post(uri, params);
+    }
+
+    @Override
+    public CompletableFuture<IWebPreferencesResponse> postAsync(URI uri, Map<String, String> params)
+    {
+        return CompletableFuture.completedFuture(this.post(uri, params));
+    }
+
+    @Override
+    public CompletableFuture<IWebPreferencesResponse> postAsync(URI uri, Map<String, String> params, int timeout)
+    {
+        return this.postAsync(uri, params);
+    }
+
+    /**
+     * Add the requested values and the current version to a response, or
+     * mark the response as not modified if the client already holds the
+     * current version
+     */
+    private void putValues(Map<String, Object> response, String uuid, boolean isPrivate, Iterable<JsonElement> keys, String version)
+    {
+        String currentVersion = this.getVersion(uuid, isPrivate);
+        response.put("ver", currentVersion);
+
+        if (currentVersion.equals(version))
+        {
+            response.put("response", "304 Not Modified");
+            return;
+        }
+
+        response.put("get", this.getValues(uuid, isPrivate, keys));
+    }
+
+    private String getVersion(String uuid, boolean isPrivate)
+    {
+        Long version = this.versions.get((isPrivate ? "private:" : "public:") + uuid);
+        return String.valueOf(version != null ? version.longValue() : 0L);
+    }
+
+    private void bumpVersion(String uuid, boolean isPrivate)
+    {
+        this.versions.put((isPrivate ? "private:" : "public:") + uuid, this.sequence.incrementAndGet());
+    }
+
+    private Map<String, String> getValues(String uuid, boolean isPrivate, Iterable<JsonElement> keys)
+    {
+        Map<String, String> result = new HashMap<String, String>();
+        Map<String, String> values = this.getStore(isPrivate).get(uuid);
+
+        for (JsonElement key : keys)
+        {
+            String value = null;
+            if (values != null)
+            {
+                synchronized (values)
+                {
+                    value = values.get(key.getAsString());
+                }
+            }
+
+            // Keys we do not have are omitted, like the real service
+            if (value != null)
+            {
+                result.put(key.getAsString(), value);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Store a value, an empty value removes the key
+     */
+    private static void store(Map<String, String> values, String key, String value)
+    {
+        if (value == null || value.isEmpty())
+        {
+            values.remove(key);
+        }
+        else
+        {
+            values.put(key, value);
+        }
+    }
+
+    private Map<String, String> getValues(String uuid, boolean isPrivate)
+    {
+        if (uuid == null)
+        {
+            throw new IllegalArgumentException("No UUID specified");
+        }
+
+        Map<String, Map<String, String>> store = this.getStore(isPrivate);
+        Map<String, String> values = store.get(uuid);
+        if (values == null)
+        {
+            synchronized (store)
+            {
+                values = store.get(uuid);
+                if (values == null)
+                {
+                    values = new HashMap<String, String>();
+                    store.put(uuid, values);
+                }
+            }
+        }
+
+        return values;
+    }
+
+    private Map<String, Map<String, String>> getStore(boolean isPrivate)
+    {
+        return isPrivate ? this.privateStore : this.publicStore;
+    }
+}
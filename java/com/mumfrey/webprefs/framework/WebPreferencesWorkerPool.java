@@ -0,0 +1,307 @@
+package com.mumfrey.webprefs.framework;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.mumfrey.webprefs.interfaces.IWebPreferencesResponse;
+
+/**
+ * Executor-backed dispatcher for the provider. Tasks for different UUIDs are
+ * processed concurrently on a fixed number of worker threads whilst tasks which
+ * share a UUID are processed strictly in the order they were dispatched.
+ *
+ * <p>In asynchronous mode no worker threads are used, tasks are submitted to
+ * the service using {@link WebPreferencesProvider#processAsync} and the next
+ * task for the same UUID is submitted when the returned future completes.</p>
+ *
+ * @author Adam Mummery-Smith
+ */
+class WebPreferencesWorkerPool
+{
+    private final WebPreferencesProvider provider;
+
+    private final ExecutorService executor;
+
+    /**
+     * Caps the number of requests in flight at any one time
+     */
+    private final Semaphore permits;
+
+    /**
+     * UUIDs which currently have a task in flight
+     */
+    private final Set<String> busyUUIDs = new HashSet<String>();
+
+    /**
+     * Tasks waiting for an earlier task for the same UUID to complete, in
+     * dispatch order
+     */
+    private final List<WebPreferencesServiceTask> deferredTasks = new LinkedList<WebPreferencesServiceTask>();
+
+    private final int maxInFlight;
+
+    /**
+     * Maximum number of deferred tasks. When reached, dispatch waits for a
+     * deferred task to be promoted, so further tasks stay in the provider
+     * queue where its capacity and priorities still apply.
+     */
+    private final int maxDeferred;
+
+    private volatile boolean shutdown;
+
+    /**
+     * @param provider provider which owns this pool
+     * @param hostName host name, used to name the worker threads
+     * @param workers number of worker threads, or 0 to submit tasks
+     *      asynchronously
+     * @param maxInFlight maximum number of tasks in flight at once
+     */
+    WebPreferencesWorkerPool(WebPreferencesProvider provider, final String hostName, int workers, int maxInFlight)
+    {
+        this.provider = provider;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.permits = new Semaphore(this.maxInFlight);
+        this.maxDeferred = this.maxInFlight;
+        this.executor = workers < 1 ? null : Executors.newFixedThreadPool(Math.max(1, workers), new ThreadFactory()
+        {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "WebPreferencesProvider worker thread " + this.threadNumber.getAndIncrement()
+                        + " [" + hostName + "]");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    int getInFlightCount()
+    {
+        return this.maxInFlight - this.permits.availablePermits();
+    }
+
+    /**
+     * Dispatch a task to the pool, blocks the calling thread whilst the
+     * in-flight cap is reached
+     */
+    void dispatch(WebPreferencesServiceTask task) throws InterruptedException
+    {
+        boolean dropped = false;
+
+        synchronized (this.busyUUIDs)
+        {
+            while (this.deferredTasks.size() >= this.maxDeferred && !this.shutdown)
+            {
+                this.busyUUIDs.wait();
+            }
+        }
+
+        this.permits.acquire();
+
+        synchronized (this.busyUUIDs)
+        {
+            if (this.shutdown)
+            {
+                dropped = true;
+            }
+            else if (this.isBlocked(task) || !this.claim(task, null))
+            {
+                this.deferredTasks.add(task);
+                this.permits.release();
+                return;
+            }
+        }
+
+        // The executor rejects tasks once shut down
+        if (dropped)
+        {
+            this.permits.release();
+            this.provider.onDispatchFailed(task, null, RequestFailureReason.DROPPED);
+            return;
+        }
+
+        this.execute(task);
+    }
+
+    /**
+     * Stop the pool, deferred tasks are failed with
+     * {@link RequestFailureReason#DROPPED} since they will never be sent
+     */
+    void shutdown()
+    {
+        List<WebPreferencesServiceTask> dropped;
+        synchronized (this.busyUUIDs)
+        {
+            this.shutdown = true;
+            dropped = new ArrayList<WebPreferencesServiceTask>(this.deferredTasks);
+            this.deferredTasks.clear();
+            this.busyUUIDs.notifyAll();
+        }
+
+        if (this.executor != null)
+        {
+            this.executor.shutdown();
+        }
+
+        for (WebPreferencesServiceTask task : dropped)
+        {
+            this.provider.onDispatchFailed(task, null, RequestFailureReason.DROPPED);
+        }
+    }
+
+    /**
+     * Returns true if any UUID of the supplied task is held by a deferred task,
+     * caller must hold the lock
+     */
+    private boolean isBlocked(WebPreferencesServiceTask task)
+    {
+        for (WebPreferencesServiceTask deferred : this.deferredTasks)
+        {
+            for (String uuid : task.getUUIDs())
+            {
+                if (deferred.getUUIDs().contains(uuid))
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Attempt to claim the UUIDs for the specified task, caller must hold the
+     * lock
+     *
+     * @param task task to claim
+     * @param blocked additional UUIDs which must be treated as busy
+     * @return true if the UUIDs were claimed
+     */
+    private boolean claim(WebPreferencesServiceTask task, Set<String> blocked)
+    {
+        for (String uuid : task.getUUIDs())
+        {
+            if (this.busyUUIDs.contains(uuid) || (blocked != null && blocked.contains(uuid)))
+            {
+                return false;
+            }
+        }
+
+        this.busyUUIDs.addAll(task.getUUIDs());
+        return true;
+    }
+
+    private void execute(final WebPreferencesServiceTask task)
+    {
+        if (this.executor == null)
+        {
+            this.executeAsync(task);
+            return;
+        }
+
+        this.executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                WebPreferencesServiceTask next = task;
+                try
+                {
+                    while (next != null)
+                    {
+                        WebPreferencesWorkerPool.this.provider.process(next);
+                        next = WebPreferencesWorkerPool.this.complete(next);
+                    }
+                }
+                finally
+                {
+                    WebPreferencesWorkerPool.this.permits.release();
+                }
+            }
+        });
+    }
+
+    private void executeAsync(final WebPreferencesServiceTask task)
+    {
+        this.provider.processAsync(task).whenComplete(new BiConsumer<IWebPreferencesResponse, Throwable>()
+        {
+            @Override
+            public void accept(IWebPreferencesResponse response, Throwable th)
+            {
+                WebPreferencesServiceTask next = WebPreferencesWorkerPool.this.complete(task);
+                if (next != null)
+                {
+                    WebPreferencesWorkerPool.this.executeAsync(next);
+                }
+                else
+                {
+                    WebPreferencesWorkerPool.this.permits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Release the UUIDs held by a completed task and promote any deferred tasks
+     * which are now able to run. The first runnable task is returned so that
+     * the calling worker can process it using its existing permit.
+     */
+    private WebPreferencesServiceTask complete(WebPreferencesServiceTask task)
+    {
+        WebPreferencesServiceTask next = null;
+        List<WebPreferencesServiceTask> promoted = new ArrayList<WebPreferencesServiceTask>();
+
+        synchronized (this.busyUUIDs)
+        {
+            this.busyUUIDs.removeAll(task.getUUIDs());
+
+            Set<String> blocked = new HashSet<String>();
+            for (Iterator<WebPreferencesServiceTask> iter = this.deferredTasks.iterator(); iter.hasNext();)
+            {
+                WebPreferencesServiceTask deferred = iter.next();
+                if (this.claim(deferred, blocked))
+                {
+                    if (next == null)
+                    {
+                        iter.remove();
+                        next = deferred;
+                        continue;
+                    }
+
+                    if (!this.shutdown && this.permits.tryAcquire())
+                    {
+                        iter.remove();
+                        promoted.add(deferred);
+                        continue;
+                    }
+
+                    this.busyUUIDs.removeAll(deferred.getUUIDs());
+                }
+
+                blocked.addAll(deferred.getUUIDs());
+            }
+
+            this.busyUUIDs.notifyAll();
+        }
+
+        // Dispatched outside the lock, since an async task can complete (and re-enter this method) synchronously
+        for (WebPreferencesServiceTask deferred : promoted)
+        {
+            this.execute(deferred);
+        }
+
+        return next;
+    }
+}
@@ -2,6 +2,8 @@ package com.mumfrey.webprefs.interfaces;
 
 import java.util.Set;
 
+import com.mumfrey.webprefs.PreferenceKey;
+
 /**
  * Web-based preferences, objects implementing this interface represent a remote
  * asychronous Key/Value store which fetches and commits values on a best-effort
@@ -106,7 +108,9 @@ public interface IWebPreferences
      * the preferences manager when connecting to a server.
      *
      * <p>Invoking <tt>poll()</tt> causes all of the values in the collection to
-     * be requested as a single batch</p>
+     * be requested as a single batch. If the manager's change feed is enabled
+     * the server is asked first whether the collection changed, and the values
+     * are only requested if it did.</p>
      */
     public abstract void poll();
 
@@ -133,6 +137,15 @@ public interface IWebPreferences
      */
     public abstract boolean has(String key);
 
+    /**
+     * Works exactly like has(String) but takes a pre-validated key, the key is
+     * not validated again
+     *
+     * @param key Key to check for
+     * @return
+     */
+    public abstract boolean has(PreferenceKey key);
+
     /**
      * Get the value for the specified key from this collection. Invoking this
      * method causes asynchronous retrieval of the specified key if it is not
@@ -143,6 +156,16 @@ public interface IWebPreferences
      * @return
      */
     public abstract String get(String key);
+
+    /**
+     * Works exactly like get(String) but takes a pre-validated key, the key is
+     * not validated again. Prefer this method for values which are read every
+     * frame.
+     *
+     * @param key
+     * @return
+     */
+    public abstract String get(PreferenceKey key);
     
     /**
      * Works exactly like get(String), including triggering asynchronous
@@ -156,6 +179,80 @@ public interface IWebPreferences
      */
     public abstract String get(String key, String defaultValue);
 
+    /**
+     * Works exactly like get(String, String) but takes a pre-validated key
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public abstract String get(PreferenceKey key, String defaultValue);
+
+    /**
+     * Get the value for the specified key as an integer. Works like
+     * get(String, String) except that the defaultValue is also returned if
+     * the value is not a valid integer. The parsed value is retained until
+     * the value changes, so repeated calls do not parse the value again.
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public abstract int getInt(String key, int defaultValue);
+
+    /**
+     * Works exactly like getInt(String, int) but takes a pre-validated key
+     */
+    public abstract int getInt(PreferenceKey key, int defaultValue);
+
+    /**
+     * Get the value for the specified key as a float, see
+     * {@link #getInt(String, int)}
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public abstract float getFloat(String key, float defaultValue);
+
+    /**
+     * Works exactly like getFloat(String, float) but takes a pre-validated key
+     */
+    public abstract float getFloat(PreferenceKey key, float defaultValue);
+
+    /**
+     * Get the value for the specified key as a boolean, "true" and "1" are
+     * true and "false" and "0" are false. See {@link #getInt(String, int)}
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public abstract boolean getBoolean(String key, boolean defaultValue);
+
+    /**
+     * Works exactly like getBoolean(String, boolean) but takes a
+     * pre-validated key
+     */
+    public abstract boolean getBoolean(PreferenceKey key, boolean defaultValue);
+
+    /**
+     * Get the value for the specified key as an ARGB colour. Colours are
+     * stored as hexadecimal with an optional # or 0x prefix, six digit values
+     * are treated as RGB and returned fully opaque. See
+     * {@link #getInt(String, int)}
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public abstract int getColor(String key, int defaultValue);
+
+    /**
+     * Works exactly like getColor(String, int) but takes a pre-validated key
+     */
+    public abstract int getColor(PreferenceKey key, int defaultValue);
+
     /**
      * Sets a value in the collection and marks it for asynchronous commit to
      * the server.
@@ -165,6 +262,14 @@ public interface IWebPreferences
      */
     public abstract void set(String key, String value);
 
+    /**
+     * Works exactly like set(String, String) but takes a pre-validated key
+     *
+     * @param key
+     * @param value
+     */
+    public abstract void set(PreferenceKey key, String value);
+
     /**
      * Remove a key from this collection. Marks the key to be deleted from the
      * server as well.
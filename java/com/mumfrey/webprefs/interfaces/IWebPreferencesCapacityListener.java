@@ -0,0 +1,16 @@
+package com.mumfrey.webprefs.interfaces;
+
+/**
+ * Listener which is notified when a provider which rejected a request has
+ * space in its queue again
+ *
+ * @author Adam Mummery-Smith
+ */
+public interface IWebPreferencesCapacityListener
+{
+    /**
+     * Called once when the provider queue drains below its low-water mark,
+     * listeners must register again if they are rejected again
+     */
+    public abstract void onCapacityAvailable();
+}
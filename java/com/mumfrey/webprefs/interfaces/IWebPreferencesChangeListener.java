@@ -0,0 +1,24 @@
+package com.mumfrey.webprefs.interfaces;
+
+import java.util.Set;
+
+import com.mumfrey.webprefs.framework.RequestFailureReason;
+
+/**
+ * Receives the result of a changes request
+ *
+ * @author Adam Mummery-Smith
+ */
+public interface IWebPreferencesChangeListener
+{
+    /**
+     * Called when a changes request succeeds
+     *
+     * @param uuids UUIDs which were queried
+     * @param changed UUIDs which changed since the cursor which was sent
+     * @param cursor cursor to send with the next request for the same UUIDs
+     */
+    public abstract void onChangesReceived(Set<String> uuids, Set<String> changed, String cursor);
+
+    public abstract void onChangesRequestFailed(Set<String> uuids, RequestFailureReason reason);
+}
@@ -7,7 +7,23 @@ import com.mumfrey.webprefs.framework.RequestFailureReason;
 
 public interface IWebPreferencesClient
 {
-    public abstract void onGetRequestSuccess(String uuid, Map<String, String> values);
+    /**
+     * Called when a GET succeeds
+     *
+     * @param uuid UUID the values belong to
+     * @param keys keys which were requested
+     * @param values values returned by the server, requested keys which are
+     *      missing from the values do not exist on the server
+     * @param version version of the collection returned by the server, or null
+     *      if the server does not support versions
+     */
+    public abstract void onGetRequestSuccess(String uuid, Set<String> keys, Map<String, String> values, String version);
+
+    /**
+     * Called when a conditional GET succeeds and the server reports that the
+     * collection has not changed since the version which was sent
+     */
+    public abstract void onGetRequestNotModified(String uuid, Set<String> keys, String version);
 
     public abstract void onSetRequestSuccess(String uuid, Set<String> keys);
 
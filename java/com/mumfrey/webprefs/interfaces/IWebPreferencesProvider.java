@@ -5,6 +5,8 @@ import java.util.Set;
 
 import net.minecraft.util.Session;
 
+import com.mumfrey.webprefs.framework.RequestPriority;
+
 public interface IWebPreferencesProvider
 {
     public abstract boolean isActive();
@@ -17,5 +19,43 @@ public interface IWebPreferencesProvider
 
     public boolean requestGet(IWebPreferencesClient client, String uuid, Set<String> keys, boolean getPrivate);
 
+    public boolean requestGet(IWebPreferencesClient client, String uuid, Set<String> keys, boolean getPrivate, RequestPriority priority);
+
+    /**
+     * Request values conditionally, if the collection has not changed since
+     * the specified version then the client receives
+     * {@link IWebPreferencesClient#onGetRequestNotModified} instead of values.
+     * The version should only be supplied if the client holds values for all
+     * of the requested keys.
+     */
+    public boolean requestGet(IWebPreferencesClient client, String uuid, Set<String> keys, boolean getPrivate, RequestPriority priority,
+            String version);
+
+    /**
+     * Ask the server which of the specified UUIDs have public values which
+     * changed since the specified cursor
+     *
+     * @param cursor cursor from an earlier response, or null to report all
+     *      UUIDs as changed and obtain a cursor
+     */
+    public boolean requestChanges(IWebPreferencesChangeListener listener, Set<String> uuids, String cursor);
+
     public boolean requestSet(IWebPreferencesClient client, String uuid, Map<String, String> values, boolean setPrivate);
+
+    public boolean requestSet(IWebPreferencesClient client, String uuid, Map<String, String> values, boolean setPrivate, RequestPriority priority);
+
+    /**
+     * Register a one-shot listener to be notified when the provider has space
+     * for new requests, the listener is notified immediately if space is
+     * already available
+     */
+    public void addCapacityListener(IWebPreferencesCapacityListener listener);
+
+    /**
+     * Cancel all queued and in-flight requests for the specified UUID, no
+     * callbacks are delivered for cancelled requests
+     *
+     * @return number of requests cancelled
+     */
+    public int cancelRequests(String uuid);
 }
@@ -0,0 +1,21 @@
+package com.mumfrey.webprefs.interfaces;
+
+import java.util.Map;
+
+/**
+ * Receives values pushed by the server for a subscribed UUID
+ *
+ * @author Adam Mummery-Smith
+ */
+public interface IWebPreferencesPushListener
+{
+    /**
+     * Called when the server pushes changed values, called from the service
+     * thread
+     *
+     * @param uuid UUID the values belong to
+     * @param values changed values, a removed value is pushed as an empty
+     *      string
+     */
+    public abstract void onValuesPushed(String uuid, Map<String, String> values);
+}
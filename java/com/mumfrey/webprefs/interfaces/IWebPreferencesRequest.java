@@ -19,5 +19,11 @@ public interface IWebPreferencesRequest extends Serializable
     
     public abstract Map<String, String> getPostVars();
 
+    /**
+     * Get the transport timeout for this request in milliseconds, or 0 to use
+     * the transport default
+     */
+    public abstract int getTimeout();
+
     public abstract void onReceivedResponse(IWebPreferencesResponse response);
 }
@@ -15,7 +15,32 @@ public interface IWebPreferencesResponse extends Serializable
     public abstract String getUUID();
     
     public abstract String getServerId();
+
+    /**
+     * Get the request rate advertised by the server in requests per minute,
+     * or 0 if the server did not advertise a rate
+     */
+    public abstract int getRateLimit();
+
+    /**
+     * Get the number of seconds the server asked us to wait before sending
+     * further requests, or 0 if the server did not specify a delay
+     */
+    public abstract int getRetryAfter();
     
+    /**
+     * Get the version tag of the collection returned by the server, or null
+     * if the server does not support versions
+     */
+    public abstract String getVersion();
+
+    /**
+     * Get whether the server reported that the collection has not changed
+     * since the version sent with the request, in which case the response
+     * carries no values
+     */
+    public abstract boolean isNotModified();
+
     public abstract boolean hasSetters();
 
     public abstract Set<String> getSetters();
@@ -23,4 +48,28 @@ public interface IWebPreferencesResponse extends Serializable
     public abstract boolean hasValues();
 
     public abstract Map<String, String> getValues();
+
+    public abstract boolean hasChanges();
+
+    /**
+     * Get the UUIDs which changed since the cursor sent with a changes request
+     */
+    public abstract Set<String> getChanges();
+
+    /**
+     * Get the change cursor to send with the next changes request for the
+     * same UUIDs
+     */
+    public abstract String getCursor();
+
+    public abstract boolean hasPushedValues();
+
+    /**
+     * Get the values pushed in response to a subscription request, by UUID
+     */
+    public abstract Map<String, Map<String, String>> getPushedValues();
+
+    public abstract boolean hasBatchResponses();
+
+    public abstract IWebPreferencesResponse getBatchResponse(String uuid);
 }
@@ -1,8 +1,26 @@
 package com.mumfrey.webprefs.interfaces;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface IWebPreferencesService
 {
     public abstract void addMonitor(IWebPreferencesServiceMonitor monitor);
 
     public abstract void submit(IWebPreferencesRequest request);
+
+    /**
+     * Submit a request without blocking the calling thread. The request
+     * delegate is notified exactly as for {@link #submit} and the returned
+     * future completes once the delegate has been notified, with the response
+     * or with <tt>null</tt> if the request failed.
+     */
+    public abstract CompletableFuture<IWebPreferencesResponse> submitAsync(IWebPreferencesRequest request);
+
+    public abstract IWebPreferencesTransport getTransport();
+
+    /**
+     * Set the transport used to deliver requests, requests already in flight
+     * complete using the previous transport
+     */
+    public abstract void setTransport(IWebPreferencesTransport transport);
 }
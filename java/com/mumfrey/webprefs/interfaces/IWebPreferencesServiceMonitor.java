@@ -5,4 +5,16 @@ public interface IWebPreferencesServiceMonitor
     public abstract void onKeyRequestFailed();
 
     public abstract void onRequestFailed(Throwable th, int severity);
+
+    /**
+     * Called when a response has been received and validated successfully
+     */
+    public abstract void onRequestSucceeded();
+
+    /**
+     * Called when a response is received from the server, before the response
+     * is validated, so that monitors can observe rate limits and Retry-After
+     * delays on error responses as well as successful ones
+     */
+    public abstract void onReceivedResponse(IWebPreferencesResponse response);
 }
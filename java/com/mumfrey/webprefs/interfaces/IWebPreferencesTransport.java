@@ -0,0 +1,69 @@
+package com.mumfrey.webprefs.interfaces;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport used by the preferences service to deliver requests to a host and
+ * retrieve the response. Transports are selected per host via
+ * {@link IWebPreferencesService#setTransport}.
+ *
+ * @author Adam Mummery-Smith
+ */
+public interface IWebPreferencesTransport
+{
+    /**
+     * Get whether requests made using this transport must have their session
+     * validated with the host and with Mojang before they are sent. Transports
+     * which never leave the process can return false to skip validation.
+     */
+    public abstract boolean isValidationRequired();
+
+    /**
+     * Post the supplied vars to the request URI, blocking until the response
+     * is available
+     *
+     * @param uri request URI
+     * @param params post vars
+     * @return parsed response, never null
+     * @throws IOException if communication with the host fails
+     */
+    public abstract IWebPreferencesResponse post(URI uri, Map<String, String> params) throws IOException;
+
+    /**
+     * Post the supplied vars to the request URI, blocking until the response
+     * is available or the specified timeout elapses. Used for requests which
+     * the host may hold open for longer than the default timeout.
+     *
+     * @param uri request URI
+     * @param params post vars
+     * @param timeout timeout in milliseconds, or 0 to use the default
+     * @return parsed response, never null
+     * @throws IOException if communication with the host fails
+     */
+    public abstract IWebPreferencesResponse post(URI uri, Map<String, String> params, int timeout) throws IOException;
+
+    /**
+     * Post the supplied vars to the request URI without blocking the calling
+     * thread, the returned future completes exceptionally if communication
+     * with the host fails
+     *
+     * @param uri request URI
+     * @param params post vars
+     * @return future for the parsed response
+     */
+    public abstract CompletableFuture<IWebPreferencesResponse> postAsync(URI uri, Map<String, String> params);
+
+    /**
+     * Post the supplied vars to the request URI without blocking the calling
+     * thread, using the specified timeout instead of the default
+     *
+     * @param uri request URI
+     * @param params post vars
+     * @param timeout timeout in milliseconds, or 0 to use the default
+     * @return future for the parsed response
+     */
+    public abstract CompletableFuture<IWebPreferencesResponse> postAsync(URI uri, Map<String, String> params, int timeout);
+}